@@ -0,0 +1,166 @@
+/* AbsorptionTable.java */
+
+package org.uacalc.alg;
+
+import java.util.*;
+import org.uacalc.alg.op.Operation;
+import org.uacalc.alg.op.OperationSymbol;
+
+/**
+ * For an operation, the patterns of equal arguments which make it a
+ * projection. If the operation is idempotent, applying it to
+ * <code>(a, a, ..., a)</code> gives <code>a</code>; if it is a majority
+ * operation, applying it to <code>(a, a, b)</code> gives <code>a</code>,
+ * and so on. When the closure routines apply the operation to the
+ * elements with indices <code>argIndeces</code>, and the pattern of
+ * equal indices is one of these, the value is one of the arguments, so
+ * it cannot be new and the application can be skipped.
+ * <p>
+ * A pattern is coded by recording, for each position <code>r</code>,
+ * the first position with the same index; this is a number at most
+ * <code>r</code>, and these numbers are the digits of the code.
+ *
+ * @author Ralph Freese
+ */
+public final class AbsorptionTable {
+
+  /**
+   * A pattern is only tested if this many applications suffice.
+   */
+  static final int MAX_PATTERN_TEST = 1 << 16;
+
+  /**
+   * Tables are only made for operations of at most this arity.
+   */
+  static final int MAX_ARITY = 6;
+
+  private final int arity;
+  private final boolean[] absorbing;
+
+  private AbsorptionTable(int arity, boolean[] absorbing) {
+    this.arity = arity;
+    this.absorbing = absorbing;
+  }
+
+  /**
+   * Test if applying the operation to the elements with these indices
+   * gives one of them.
+   */
+  public boolean absorbs(final int[] argIndeces) {
+    final int n = arity;
+    int code = 0;
+    int place = 1;
+    for (int r = 1; r < n; r++) {
+      place = place * n;
+      final int a = argIndeces[r];
+      int s = 0;
+      while (argIndeces[s] != a) s++;
+      code += s * place;
+    }
+    return absorbing[code];
+  }
+
+  /**
+   * The table for each of <code>ops</code>, or null if the operation
+   * has no absorbing patterns which hold in every one of
+   * <code>algebras</code> and <code>image</code>, if that is not null.
+   * The argument that the value equals must be the same one in all of
+   * them, so that the value in a product is an argument too.
+   */
+  static AbsorptionTable[] tables(List<Operation> ops,
+                         List<? extends Algebra> algebras, Algebra image) {
+    final AbsorptionTable[] ans = new AbsorptionTable[ops.size()];
+    final Set<Algebra> distinct = Collections.newSetFromMap(
+                                      new IdentityHashMap<Algebra,Boolean>());
+    distinct.addAll(algebras);
+    if (image != null) distinct.add(image);
+    for (int i = 0; i < ans.length; i++) {
+      ans[i] = makeTable(ops.get(i).symbol(), distinct);
+    }
+    return ans;
+  }
+
+  private static AbsorptionTable makeTable(OperationSymbol sym,
+                                           Collection<Algebra> algebras) {
+    final int n = sym.arity();
+    if (n == 0 || n > MAX_ARITY || algebras.isEmpty()) return null;
+    int size = 1;
+    for (int r = 0; r < n; r++) {
+      size = size * n;
+    }
+    final boolean[] absorbing = new boolean[size];
+    final int[] pattern = new int[n];
+    boolean some = false;
+    for (int code = 0; code < size; code++) {
+      if (!decode(code, pattern)) continue;
+      int mask = -1;
+      for (Algebra alg : algebras) {
+        final Operation op = alg.getOperation(sym);
+        if (op == null) {
+          mask = 0;
+          break;
+        }
+        mask &= projections(op, alg.cardinality(), pattern);
+        if (mask == 0) break;
+      }
+      if (mask != 0) {
+        absorbing[code] = true;
+        some = true;
+      }
+    }
+    return some ? new AbsorptionTable(n, absorbing) : null;
+  }
+
+  /**
+   * Put the pattern with this code into <code>pattern</code>, returning
+   * false if the code is not that of a pattern.
+   */
+  private static boolean decode(int code, int[] pattern) {
+    final int n = pattern.length;
+    for (int r = 0; r < n; r++) {
+      pattern[r] = code % n;
+      code = code / n;
+      if (pattern[r] > r || pattern[pattern[r]] != pattern[r]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * The positions <code>c</code>, as a bit mask, such that
+   * <code>op</code> is always equal to its argument <code>c</code> on
+   * arguments with this pattern, or 0 if testing would take too long.
+   */
+  private static int projections(Operation op, int algSize, int[] pattern) {
+    final int n = pattern.length;
+    int blocks = 0;
+    int mask = 0;
+    for (int r = 0; r < n; r++) {
+      if (pattern[r] == r) {
+        blocks++;
+        mask |= 1 << r;
+      }
+    }
+    if (Math.pow(algSize, blocks) > MAX_PATTERN_TEST) return 0;
+    final int[] arg = new int[n];
+    final int[] values = new int[n];  // the values at the first positions
+    while (true) {
+      for (int r = 0; r < n; r++) {
+        arg[r] = values[pattern[r]];
+      }
+      final int v = op.intValueAt(arg);
+      for (int r = 0; r < n; r++) {
+        if ((mask & (1 << r)) != 0 && arg[r] != v) mask &= ~(1 << r);
+      }
+      if (mask == 0) return 0;
+      // the next assignment of values to the first positions
+      int r = n - 1;
+      while (r >= 0 && (pattern[r] != r || values[r] == algSize - 1)) {
+        if (pattern[r] == r) values[r] = 0;
+        r--;
+      }
+      if (r < 0) return mask;
+      values[r]++;
+    }
+  }
+
+}
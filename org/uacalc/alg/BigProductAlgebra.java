@@ -315,6 +315,29 @@ public class BigProductAlgebra extends GeneralAlgebra implements Algebra {
   
   public int getNumberOfFactors() {return numberOfFactors; }
 
+  /**
+   * The largest cardinality of a factor.
+   */
+  public int maxFactorSize() {
+    int max = 0;
+    for (int i = 0; i < sizes.length; i++) {
+      if (sizes[i] > max) max = sizes[i];
+    }
+    return max;
+  }
+
+  /**
+   * A <tt>PackedTupleStore</tt> for elements of this algebra. The
+   * coordinates are kept in bytes or shorts when every factor has at 
+   * most 256 or 65536 elements.
+   *
+   * @param expectedSize  the number of elements we expect to store
+   */
+  public PackedTupleStore makeTupleStore(int expectedSize) {
+    return PackedTupleStore.create(numberOfFactors, expectedSize, 
+                                   Math.max(maxFactorSize() - 1, 0));
+  }
+
   public SmallAlgebra projection(int k) {
     return algebras.get(k);
   }
@@ -10,6 +10,7 @@ import org.uacalc.util.*;
 import org.uacalc.terms.*;
 import org.uacalc.eq.*;
 import org.uacalc.io.TermMapWriter;
+import org.uacalc.io.ClosureCheckpoint;
 import org.uacalc.alg.conlat.*;
 import org.uacalc.alg.op.AbstractOperation;
 import org.uacalc.alg.op.Operation;
@@ -21,7 +22,9 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.uacalc.util.SequenceIterator;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 
 
 /**
@@ -36,8 +39,6 @@ import java.io.FileNotFoundException;
  */
 public class Closer {
 	
-	public static final int FEEDER_CAPACITY = 10000; // The capacity for a parallel "feeder" queue
-	public static final int PROCESS_PER_LOOP = 1000; // The number of chunks to process per main loop in the controller Thread
   
   BigProductAlgebra algebra;
   List<IntArray> ans;
@@ -71,6 +72,23 @@ public class Closer {
   ProgressReport report;
   private boolean suppressOutput;
   public String writeTermMapOnComplete=null;
+  // if true the serial closures only record how each element was found
+  // and make the terms when they are asked for; see TermProvenance.
+  boolean compactTerms = false;
+  // if true sgClose drops the coordinates determined by the others,
+  // closes in the smaller product and lifts; see CoordinateReduction.
+  boolean reduceCoordinates = false;
+  // if not null the serial closures keep their elements in a file
+  // mapped from this directory; see MappedTupleStore.
+  File spillDirectory;
+  // the mapped store of the closure running now, if any; its file is
+  // closed when the closure returns.
+  private MappedTupleStore spillStore;
+  // if not null the closures save themselves here between passes;
+  // see Closer2.resume.
+  File checkpointFile;
+  long checkpointInterval = 0; // milliseconds
+  long lastCheckpoint = 0;
   
   static final int nCPUs = Runtime.getRuntime().availableProcessors(); 
   
@@ -303,6 +321,25 @@ public class Closer {
    */
   public List<IntArray> sgClose(List<IntArray> elems, int closedMark, 
                                      final Map<IntArray,Term> termMap) {
+    try {
+      return sgCloseStored(elems, closedMark, termMap);
+    }
+    finally {
+      closeSpillStore();
+    }
+  }
+
+  private List<IntArray> sgCloseStored(List<IntArray> elems, int closedMark, 
+                                       final Map<IntArray,Term> termMap) {
+    if (reduceCoordinates && eltsToFind == null && blocks == null
+        && operations == null && homomorphism == null 
+        && checkpointFile == null) {
+      final CoordinateReduction reduction = 
+                                 CoordinateReduction.make(algebra, elems);
+      if (reduction != null) {
+        return sgCloseReduced(reduction, elems, closedMark, termMap);
+      }
+    }
     if (algebra.isPower()) {
       SmallAlgebra alg = algebra.rootFactors().get(0);
       alg.makeOperationTables();
@@ -326,6 +363,11 @@ public class Closer {
         imgOps.add(imageAlgebra.getOperation(op.symbol()));
       }
     }
+    final boolean[] symmetric = symmetricOperations(algebra.operations(),
+        algebra.factors(), homomorphism != null ? imageAlgebra : null);
+    final AbsorptionTable[] absorption = AbsorptionTable.tables(
+        algebra.operations(), algebra.factors(),
+        homomorphism != null ? imageAlgebra : null);
     
     // these final boolean are meant to help the jit compiler.
     final boolean reportNotNull = report == null ? false : true;
@@ -337,25 +379,33 @@ public class Closer {
     if (operationsNotNull) termMapForOperations = new HashMap<Operation,Term>();
     int operationsFound = 0;
 
-    ans = new ArrayList<IntArray>(elems);// IntArrays
-    final List<int[]> rawList = new ArrayList<int[]>(); // the corresponding raw int[]
+    // the elements are kept packed in the store; ans is a view of it.
+    final PackedTupleStore store = makeTupleStore(2 * elems.size());
+    final TermProvenance provenance = makeProvenance(termMap, elems.size());
     for (IntArray ia : elems) {
-      rawList.add(ia.getArray());
+      if (store.add(ia.getArray()) >= 0 && provenance != null) {
+        provenance.addGiven(termMap.get(ia));
+      }
     }
-    final HashSet<IntArray> su = new HashSet<IntArray>(ans);
+    ans = store.asList();
+    final Map<IntArray,Term> terms = 
+                 provenance == null ? termMap : provenance.asTermMap(ans);
+    if (provenance != null) this.termMap = terms;
     //  Code to add the constants
     final List<IntArray> constants = algebra.getConstants();// add the constants, if any
     for (IntArray arr : constants) {
-      if (su.add(arr)) {
-        ans.add(arr);
-        rawList.add(arr.getArray());
+      if (store.add(arr.getArray()) >= 0) {
         if (termMap != null) {
-          termMap.put(arr, NonVariableTerm.makeConstantTerm(algebra.constantToSymbol.get(arr)));
+          final Term constant = NonVariableTerm.makeConstantTerm(algebra.constantToSymbol.get(arr));
+          if (provenance != null) provenance.addGiven(constant);
+          else termMap.put(arr, constant);
         }
       }
     }
 
     int currentMark = ans.size();
+    if (closedMark > currentMark) closedMark = currentMark; // elems had duplicates
+    final int power = algebra.getNumberOfFactors();
     int pass = 0;
     CloserTiming timing = null; 
     if (reportNotNull) timing = new CloserTiming(algebra, report);
@@ -391,15 +441,11 @@ public class Closer {
         final int arity = f.arity();
         if (arity == 0) continue;  // worry about constansts later
         int[] argIndeces = new int[arity];
-        for (int j = 0; j < arity - 1; j++) {
-          argIndeces[j] = 0;
-        }
-        argIndeces[arity - 1] = closedMark;
         ArrayIncrementor inc =
-                    SequenceGenerator.sequenceIncrementor(
-                                  argIndeces, currentMark - 1, closedMark);
+          passIncrementor(argIndeces, closedMark, currentMark, symmetric[i]);
+        final AbsorptionTable absorbing = absorption[i];
 
-        final int[][] arg = new int[arity][];
+        final int[][] arg = new int[arity][power];
         while (true) {
           if (Thread.currentThread().isInterrupted()) {
             if (reportNotNull) {
@@ -408,8 +454,13 @@ public class Closer {
             }
             return null;
           }
+          // the value would be one of the arguments
+          if (absorbing != null && absorbing.absorbs(argIndeces)) {
+            if (!inc.increment()) break;
+            continue;
+          }
           for (int j = 0; j < arity; j++) {
-            arg[j] = rawList.get(argIndeces[j]);
+            store.get(argIndeces[j], arg[j]);
           }
           
           int[] vRaw = f.valueAt(arg);
@@ -420,26 +471,27 @@ public class Closer {
           //System.out.println("vRaw == test is " + v.equals(new IntArray(test)));
           if (reportNotNull) timing.incrementApps();
           //appsSoFar = appsSoFar + numberProjs;
-          if (su.add(v)) {
-            ans.add(v);
-            rawList.add(vRaw);
+          if (store.add(vRaw) >= 0) {
             if (reportNotNull) timing.incrementNextPassSize();
             if (reportNotNull) report.setSize(ans.size());
             if (Thread.currentThread().isInterrupted()) return null;
             if (termMap != null) {
-              List<Term> children = new ArrayList<Term>(arity);
-              for (int j = 0; j < arity; j++) {
-                //children.set(i, termMap.get(arg.get(i)));
-                children.add(termMap.get(ans.get(argIndeces[j])));
+              if (provenance != null) provenance.add(i, argIndeces);
+              else {
+                List<Term> children = new ArrayList<Term>(arity);
+                for (int j = 0; j < arity; j++) {
+                  //children.set(i, termMap.get(arg.get(i)));
+                  children.add(termMap.get(ans.get(argIndeces[j])));
+                }
+                termMap.put(v, new NonVariableTerm(f.symbol(), children));
               }
-              termMap.put(v, new NonVariableTerm(f.symbol(), children));
               //logger.fine("" + v + " from " + f.symbol() + " on " + arg);
               if (operationsNotNull) {
-                Term term = termMap.get(v);
+                Term term = terms.get(v);
                 // why are recreating vars each time ???
                 List<Variable> vars = new ArrayList<Variable>(generators.size());
                 for (IntArray ia : generators) {
-                  vars.add((Variable)termMap.get(ia));
+                  vars.add((Variable)terms.get(ia));
                 }
                 Operation termOp = term.interpretation(rootAlgebra, vars, true);
                 for (Operation op : operations) {
@@ -500,9 +552,9 @@ public class Closer {
                 List<Term> children = new ArrayList<Term>(arity);
                 for (int r = 0; r < arity; r++) {
                   //children.set(i, termMap.get(arg.get(i)));
-                  children.add(termMap.get(ans.get(argIndeces[r])));
+                  children.add(terms.get(ans.get(argIndeces[r])));
                 }
-                failingEquation = new Equation(termMap.get(v),
+                failingEquation = new Equation(terms.get(v),
                     new NonVariableTerm(imgOps.get(i).symbol(), children));
                 final String line = "failing equation:\n" + failingEquation;
                 if (reportNotNull) {
@@ -534,6 +586,7 @@ if (false) {
       }
       closedMark = currentMark;
       currentMark = ans.size();
+      checkpoint(closedMark, pass, terms);
       if (imgAlgNull && algebra.cardinality() > 0 && currentMark >= algebra.cardinality()) break;
     }
     if (reportNotNull) report.addEndingLine("closing done, size = " + ans.size());
@@ -542,19 +595,22 @@ if (false) {
   }
   
   /**
-   * Parallel version of <code>sgClose</code>. Only works for powers, right now.
+   * Parallel version of <code>sgClose</code>. Works for powers and for products 
+   * of different algebras, using the operation tables of each factor.
+   * If an image algebra and a homomorphism are set it extends the 
+   * homomorphism and looks for a failing equation like <code>sgClose</code>.
    * @param numThreads The number of threads to use (0=number of available cores)
+   * @param indicesPerChunk no longer used; the work is split into blocks of first arguments
    * @return A list of IntArray's
    */
   public List<IntArray> sgCloseParallel( int numThreads, int indicesPerChunk ) {
 	  if ( numThreads==0 ) numThreads=Runtime.getRuntime().availableProcessors();
 	  if ( algebra.isPower() ) {
-		  SmallAlgebra alg = algebra.rootFactors().get(0);
-		  alg.makeOperationTables();
-		  return sgClosePowerParallel(generators,0,termMap, numThreads, indicesPerChunk, numThreads>8);
-	  }
-	  return null;
-	  // Not Implemented Yet
+		  algebra.rootFactors().get(0).makeOperationTables();
+	  } else {
+		  for ( SmallAlgebra alg : algebra.factors() ) alg.makeOperationTables();
+	  } // end if-else ( algebra.isPower() )
+	  return sgClosePowerParallel(generators,0,termMap, numThreads);
   }
   
   /**
@@ -576,7 +632,12 @@ if (false) {
     if (algebra.isPower()) {
       SmallAlgebra alg = algebra.rootFactors().get(0);
       alg.makeOperationTables();
-      return sgClosePower(elems, closedMark, termMap);
+      try {
+        return sgClosePower(elems, closedMark, termMap);
+      }
+      finally {
+        closeSpillStore();
+      }
     }
     
     if (report != null) report.addStartLine("parallel subpower closing ...");
@@ -657,6 +718,7 @@ if (false) {
       
       closedMark = currentMark;
       currentMark = ans.size();
+      checkpoint(closedMark, pass, termMap);
       if (imgAlgNull && algebra.cardinality() > 0 && currentMark >= algebra.cardinality()) break;
     }
     if (reportNotNull) report.addEndingLine("closing done, size = " + ans.size());
@@ -667,7 +729,12 @@ if (false) {
   public List<IntArray> sgClosePower() {
     //System.out.println("gens = " + generators);
     //System.out.println("termMap = " + termMap);
-    return sgClosePower(generators, 0, termMap);
+    try {
+      return sgClosePower(generators, 0, termMap);
+    }
+    finally {
+      closeSpillStore();
+    }
   }
   
   /**
@@ -715,12 +782,6 @@ if (false) {
       if (imgOps != null) imgOps[i] = imageAlgebra.getOperation(op.symbol());
     }
     //if (k > 0) System.out.println("opTable[0] = " + opTables[0]);
- //   List<Operation> imgOps = null;
-//    Operation[] imgOps;
- //   if (homomorphism != null && imageAlgebra != null) {
- //     imgOps = new ArrayList<Operation>(imageAlgebra.operations().size());
-      
-  //  }
     
     // these final boolean are meant to help the jit compiler.
     final boolean reportNotNull = report == null ? false : true;
@@ -730,45 +791,59 @@ if (false) {
     final boolean operationsNotNull = operations == null ? false : true;
     final boolean blocksNotNull = blocks == null ? false : true;
     final boolean valuesNotNull = values == null ? false : true;
+    final int[] eltToFindRaw = eltToFindNotNull ? eltToFind.getArray() : null;
+    final ConstraintPlan constraint = 
+        blocksNotNull ? new ConstraintPlan(blocks, valuesNotNull ? values : null) : null;
+    final boolean[] symmetric = symmetricOperations(ops,
+        algebra.factors().subList(0, 1), imgAlgNull ? null : imageAlgebra);
+    final AbsorptionTable[] absorption = AbsorptionTable.tables(ops,
+        algebra.factors().subList(0, 1), imgAlgNull ? null : imageAlgebra);
     
     if (operationsNotNull) termMapForOperations = new HashMap<Operation,Term>();
     int operationsFound = 0;
     
     //System.out.println("got to sgClosePower, reportNotNull: " + reportNotNull);
     final int power = algebra.getNumberOfFactors();
-    ans = new ArrayList<IntArray>(elems);// IntArrays
-    final List<int[]> rawList = new ArrayList<int[]>(); // the corresponding raw int[]'s
+    // the elements are kept packed in the store, using bytes or shorts
+    // for the coordinates if the algebra is small enough; ans is a view of it.
+    final PackedTupleStore store = makeTupleStore(2 * elems.size());
+    final TermProvenance provenance = makeProvenance(termMap, elems.size());
     for (IntArray arr : elems) {
-      rawList.add(arr.getArray());
+      if (store.add(arr.getArray()) >= 0 && provenance != null) {
+        provenance.addGiven(termMap.get(arr));
+      }
     }
-    final HashSet<IntArray> su = new HashSet<IntArray>(ans);
+    ans = store.asList();
+    final Map<IntArray,Term> terms = 
+                 provenance == null ? termMap : provenance.asTermMap(ans);
+    if (provenance != null) this.termMap = terms;
     //         Code to add the constants
     final List<IntArray> constants = algebra.getConstants();// add the constants, if any
     for (IntArray arr : constants) {
-      if (su.add(arr)) {
-        ans.add(arr);
-        rawList.add(arr.getArray());
+      if (store.add(arr.getArray()) >= 0) {
         if (termMap != null) {
-          termMap.put(arr, NonVariableTerm.makeConstantTerm(algebra.constantToSymbol.get(arr)));
+          final Term constant = NonVariableTerm.makeConstantTerm(algebra.constantToSymbol.get(arr));
+          if (provenance != null) provenance.addGiven(constant);
+          else termMap.put(arr, constant);
         }
       }
     }
-    int currentMark = ans.size();
+    int currentMark = store.size();
+    if (closedMark > currentMark) closedMark = currentMark; // elems had duplicates
     int pass = 0;
     final CloserTiming timing = reportNotNull ?  new CloserTiming(algebra, report) : null;
-    //vvv;
     while (closedMark < currentMark) {
-      String str = "pass: " + pass + ", size: " + ans.size();
+      String str = "pass: " + pass + ", size: " + store.size();
       if (reportNotNull) {
-        timing.updatePass(ans.size());
+        timing.updatePass(store.size());
         report.setPass(pass);
-        report.setPassSize(ans.size());
+        report.setPassSize(store.size());
         if (!suppressOutput) report.addLine(str);
       }
       else {
         if (!suppressOutput) System.out.println(str);
       }
-      if (maxSize > 0 && ans.size() >= maxSize) return ans;
+      if (maxSize > 0 && store.size() >= maxSize) return ans;
       pass++;
       // close the elements in current
       for (int i = 0; i < k; i++) {
@@ -776,71 +851,61 @@ if (false) {
         if (arity == 0) continue;  // worry about constansts later
         final int[] opTable = opTables[i];
         final int[] argIndeces = new int[arity];
-        for (int r = 0; r < arity - 1; r++) {
-          argIndeces[r] = 0;
-        }
-        argIndeces[arity - 1] = closedMark;
         ArrayIncrementor inc =
-                    SequenceGenerator.sequenceIncrementor(
-                                  argIndeces, currentMark - 1, closedMark);
+          passIncrementor(argIndeces, closedMark, currentMark, symmetric[i]);
+        final AbsorptionTable absorbing = absorption[i];
+        final int[] arg = new int[arity];
+        // the result is computed into vRaw, which only gets a new 
+        // array when the last one was kept as a new element.
+        int[] vRaw = new int[power];
         while (true) {
           if (Thread.currentThread().isInterrupted()) {
             if (reportNotNull) {
-              report.setSize(ans.size());
+              report.setSize(store.size());
               report.addEndingLine("cancelled ...");
             }
             return null;
           }
-          //for (int i = 0; i < arity; i++) {
-          //  arg[i] = rawList.get(argIndeces[i]);
-          //}
-          final int[] vRaw = new int[power];
-
-//yyy;
+          // the value would be one of the arguments
+          if (absorbing != null && absorbing.absorbs(argIndeces)) {
+            if (!inc.increment()) break;
+            continue;
+          }
           if (opTable != null) {
-            for (int j = 0; j < power; j++) {
-              int factor = algSize;
-              int index = rawList.get(argIndeces[0])[j];
-              for (int r = 1; r < arity; r++) {
-                index += factor * rawList.get(argIndeces[r])[j];
-                factor = factor * algSize;
-              }
-              vRaw[j] = opTable[index];
-            }
+            store.evaluate(opTable, algSize, argIndeces, vRaw);
           }
-            
           else {
             final Operation f = ops.get(i);
             for (int j = 0; j < power; j++) {
-              final int[] arg = new int[f.arity()];
               for (int r = 0; r < arity; r++) {
-                arg[r] = rawList.get(argIndeces[r])[j];
+                arg[r] = store.get(argIndeces[r], j);
               }
               vRaw[j] = f.intValueAt(arg);
             }
           }
-          IntArray v = new IntArray(vRaw);
           if (reportNotNull) timing.incrementApps();
-          if (su.add(v)) {
-            ans.add(v);
-            rawList.add(vRaw);
+          if (store.add(vRaw) >= 0) {
+            final IntArray v = new IntArray(vRaw);
+            vRaw = new int[power];
             if (reportNotNull) timing.incrementNextPassSize();
-            if (reportNotNull) report.setSize(ans.size());
+            if (reportNotNull) report.setSize(store.size());
             if (Thread.currentThread().isInterrupted()) return null;
             if (termMap != null) {
-              List<Term> children = new ArrayList<Term>(arity);
-              for (int r = 0; r < arity; r++) {
-                //children.set(i, termMap.get(arg.get(i)));
-                children.add(termMap.get(ans.get(argIndeces[r])));
+              if (provenance != null) provenance.add(i, argIndeces);
+              else {
+                List<Term> children = new ArrayList<Term>(arity);
+                for (int r = 0; r < arity; r++) {
+                  children.add(termMap.get(ans.get(argIndeces[r])));
+                }
+                termMap.put(v, new NonVariableTerm(symbols[i], children));
               }
-              termMap.put(v, new NonVariableTerm(symbols[i], children));
               //logger.fine("" + v + " from " + f.symbol() + " on " + arg);
               if (operationsNotNull) {
-                Term term = termMap.get(v);
+                Term term = terms.get(v);
                 // why are recreating vars each time ???
                 List<Variable> vars = new ArrayList<Variable>(generators.size());
                 for (IntArray ia : generators) {
-                  vars.add((Variable)termMap.get(ia));
+                  vars.add((Variable)terms.get(ia));
                 }
                 Operation termOp = term.interpretation(rootAlgebra, vars, true);
                 for (Operation op : operations) {
@@ -852,17 +917,17 @@ if (false) {
                 }
               }
             }
-            if (eltToFindNotNull && v.equals(eltToFind)) {
+            if (eltToFindNotNull && IntArray.equalIntArrays(v.getArray(), eltToFindRaw)) {
               if (reportNotNull) {
-                report.setSize(ans.size());
+                report.setSize(store.size());
                 report.addEndingLine("closing done, found "
-                    + eltToFind + ", at " + ans.size());
+                    + eltToFind + ", at " + store.size());
               }
               return ans;
             }
             // the get is  likely to be null so do it in this order.
             if (eltsToFindNotNull  && minusOne.equals(indecesMapOfFoundElts.get(v))) {
-              final int index = ans.size() - 1;
+              final int index = store.size() - 1;
               indecesMapOfFoundElts.put(v, index);
               specialEltsFound++;
               System.out.println("found " + v);
@@ -875,19 +940,12 @@ if (false) {
               }
             }
             if (blocksNotNull) {  // this assumes that if values != null then so is blocks
-              boolean found = false;
-              if (valuesNotNull) {  
-                if (v.satisfiesConstraint(blocks, values)) found = true;
-              }
-              else {
-                if (v.satisfiesConstraint(blocks)) found = true;
-              }
-              if (found) {
+              if (constraint.isSatisfiedBy(v.getArray())) {
                 eltToFind = v;
                 if (reportNotNull) {
-                  report.setSize(ans.size());
+                  report.setSize(store.size());
                   report.addEndingLine("closing done, found "
-                      + eltToFind + ", at " + ans.size());
+                      + eltToFind + ", at " + store.size());
                 }
                 return ans;
               }
@@ -895,11 +953,11 @@ if (false) {
             
             // can't quit early if we are looking for a homomorphism
             if (imgOps == null) {
-              final int size = ans.size();
+              final int size = store.size();
               if (imgAlgNull && algebra.cardinality() > 0 && size == algebra.cardinality()) {  
                 if (reportNotNull) {
                   report.addEndingLine("found all " + size + " elements");
-                  report.setSize(ans.size());
+                  report.setSize(size);
                 }
                 return ans;
               }
@@ -913,7 +971,7 @@ if (false) {
             }
             if (Thread.currentThread().isInterrupted()) {
               if (reportNotNull) {
-                report.setSize(ans.size());
+                report.setSize(store.size());
                 report.addEndingLine("cancelled ...");
               }
               return null;
@@ -923,6 +981,7 @@ if (false) {
           else {
             if (!imgAlgNull) {
               // here
+              final IntArray v = new IntArray(vRaw);
               final int[] args = new int[arity];
               for (int t = 0; t < arity; t++) {
                 args[t] = homomorphism.get(ans.get(argIndeces[t]));
@@ -931,18 +990,18 @@ if (false) {
                 List<Term> children = new ArrayList<Term>(arity);
                 for (int r = 0; r < arity; r++) {
                   //children.set(i, termMap.get(arg.get(i)));
-                  children.add(termMap.get(ans.get(argIndeces[r])));
+                  children.add(terms.get(ans.get(argIndeces[r])));
                 }
-                failingEquation = new Equation(termMap.get(v),
+                failingEquation = new Equation(terms.get(v),
                     new NonVariableTerm(symbols[i], children));
                 final String line = "failing equation:\n" + failingEquation;
                 if (reportNotNull) {
-                  report.setSize(ans.size());
+                  report.setSize(store.size());
                   report.addEndingLine(line);
                 }
                 else {
                   System.out.println("failing equation:\n" + failingEquation);
-                  System.out.println("size so far: " + ans.size());
+                  System.out.println("size so far: " + store.size());
                 }
                 return ans;
               }
@@ -950,30 +1009,19 @@ if (false) {
           }
           if (!inc.increment()) break;
         }
-
-if (false) {
-/*
-  List middleZero = new ArrayList();
-    for (Iterator it2 = ans.iterator(); it2.hasNext(); ) {
-      IntArray ia = (IntArray)it2.next();
-      if (ia.get(1) == 0) middleZero.add(ia);
-    }
-  System.out.println("jonsson level so far: "
-     + Algebras.jonssonLevelAux(middleZero, 
-                             (IntArray)ans.get(0),  (IntArray)ans.get(2)));
-*/
-}
       }
       closedMark = currentMark;
-      currentMark = ans.size();
+      currentMark = store.size();
+      checkpoint(closedMark, pass, terms);
+      if (blocksNotNull) constraint.reorder();
       if (imgAlgNull && algebra.cardinality() > 0 && currentMark >= algebra.cardinality()) break;
 //System.out.println("so far: " + currentMark);
 //if (currentMark > 7) return ans;
     }
     
     if (reportNotNull) {
-      final String str = "done closing, size = " + ans.size();
-      report.setSize(ans.size());
+      final String str = "done closing, size = " + store.size();
+      report.setSize(store.size());
       report.addEndingLine(str);
     }
     //else System.out.println(str);
@@ -984,421 +1032,274 @@ if (false) {
   
   /**
    * Parallel version of <code>sgClosePower</code>. 
-   * Does not look for homomorphisms or failing equations (yet).
+   * If the algebra is not a power the workers use the table of each 
+   * operation of the factor at each coordinate, so products of different 
+   * algebras are closed in parallel too.
+   * <p>
+   * The workers add the elements they find straight into a shared 
+   * <code>ConcurrentTupleStore</code>, taking blocks of first arguments from an atomic 
+   * counter; see <code>SGClosePowerWorker</code>. The only serial work left in a pass is 
+   * making the terms of the new elements. The order of the elements of a pass depends on 
+   * the scheduling of the threads, so an element found by <code>eltToFind</code> need 
+   * not be the last one.
+   * <p>
+   * If an image algebra, a homomorphism and a term map are given, the workers find 
+   * the image of each value they compute and keep it in an 
+   * <code>SGClosePowerWorker.Images</code>; if the value was already there with a 
+   * different image the pass stops and <code>failingEquation</code> is set. The 
+   * homomorphism is extended to the new elements after each pass. As with 
+   * <code>eltToFind</code>, the failing equation found need not be the one the serial 
+   * closure finds.
    * @param numThreads The number of threads to use (0=number of available cores)
-   * @param indicesPerChunk - the number of indices to be placed in each calculation chunk
    */
-  private final List<IntArray> sgClosePowerParallel(List<IntArray> elems, int closedMark, Map<IntArray,Term> termMap, int numThreads, final int indicesPerChunk, boolean splitFeeder) {
-      if ( numThreads==0 ) numThreads=Runtime.getRuntime().availableProcessors();  
-	  final int numWorkers=splitFeeder?numThreads-2:numThreads-1;
-	  if (report!=null) report.addStartLine("subpower closing ("+numWorkers+" workers)...");
+  private final List<IntArray> sgClosePowerParallel(List<IntArray> elems, int closedMark, Map<IntArray,Term> termMap, int numThreads) {
+	  if ( numThreads==0 ) numThreads=Runtime.getRuntime().availableProcessors();  
+	  if (report!=null) report.addStartLine("subpower closing ("+numThreads+" threads)...");
+	  final boolean isPower = algebra.isPower();
 	  final int algSize = algebra.factors().get(0).cardinality();
 	  final List<Operation> ops = algebra.factors().get(0).operations();
 	  final int k = ops.size();
 	  final int[][] opTables = new int[k][];
 	  final int[] arities = new int[k];
 	  final OperationSymbol[] symbols = new OperationSymbol[k];
-//	  boolean nullTable = false;
+	  final Operation[] imgOps = 
+		  (homomorphism != null && imageAlgebra != null && termMap != null) ? new Operation[k] : null;
+	  final int[][] imgTables = imgOps == null ? null : new int[k][];
+	  if ( imgOps != null ) imageAlgebra.makeOperationTables();
 	  for (int i = 0; i < k; i++) {
 		  Operation op = ops.get(i);
-		  if (op instanceof OperationWithDefaultValue) {
-			  opTables[i] = ((OperationWithDefaultValue)op).getTotalTable();
-		  } else {
-	          opTables[i] = op.getTable();
-//	          if (opTables[i] == null) nullTable = true;
-	      } // end if-else (op instanceof OperationWIthDefaultValue)
+		  opTables[i] = totalTable(op);
 		  arities[i] = op.arity();
 	      symbols[i] = op.symbol();
+	      if ( imgOps != null ) {
+	    	  imgOps[i] = imageAlgebra.getOperation(op.symbol());
+	    	  imgTables[i] = totalTable(imgOps[i]);
+	      } // end if ( imgOps != null )
 	  } // end for 0 <= i < k
+	  // for a product of different algebras: the size of each factor and its tables
+	  final int power = algebra.getNumberOfFactors();
+	  int[] factorSizes = null;
+	  int[][][] factorTables = null;
+	  Operation[][] factorOps = null;
+	  if ( !isPower ) {
+		  factorSizes = new int[power];
+		  factorTables = new int[k][power][];
+		  factorOps = new Operation[k][power];
+		  for ( int j = 0; j < power; j++ ) {
+			  final SmallAlgebra factor = algebra.factors().get(j);
+			  factorSizes[j] = factor.cardinality();
+			  for ( int i = 0; i < k; i++ ) {
+				  factorOps[i][j] = factor.operations().get(i);
+				  factorTables[i][j] = totalTable(factorOps[i][j]);
+			  } // end for 0 <= i < k
+		  } // end for 0 <= j < power
+	  } // end if ( !isPower )
 	  final boolean reportNotNull = report == null ? false : true;
-	  final boolean eltToFindNotNull = eltToFind == null ? false : true;
 	  final boolean eltsToFindNotNull = eltsToFind == null ? false : true;
 	  final boolean operationsNotNull = operations == null ? false : true;
-	  final boolean blocksNotNull = blocks == null ? false : true;
-	  final boolean valuesNotNull = values == null ? false : true;
 	  if (operationsNotNull) termMapForOperations = new HashMap<Operation,Term>();
 	  int operationsFound = 0;
 	    
-	  if ( termMap==null ) {
+	  if ( termMap==null && writeTermMapOnComplete!=null ) {
 		  termMap = new HashMap<IntArray,Term>();
 		  for ( int i = 0; i < generators.size(); i++ ) {
 			  termMap.put(generators.get(i), new VariableImp("x"+i));
 		  } // end for 0 <= i < generators.size()
-	  } // end if ( termMap==null )
-	  final int power = algebra.getNumberOfFactors();
-	  ans = new ArrayList<IntArray>(elems);// IntArrays
-	  final List<int[]> rawList = new ArrayList<int[]>(); // the corresponding raw int[]'s
+	  } // end if ( termMap==null && writeTermMapOnComplete!=null )
+	  final boolean termMapNotNull = termMap == null ? false : true;
+	  // the elements are kept in a striped concurrent store the workers add to directly; ans is a view of it
+	  final ConcurrentTupleStore store = new ConcurrentTupleStore(power, 2*elems.size(), Math.max(algebra.maxFactorSize()-1, 0));
 	  for (IntArray arr : elems) {
-		  rawList.add(arr.getArray());
+		  store.add(arr.getArray());
 	  } // end for (IntArray arr : elems )
-	  final HashSet<IntArray> su = new HashSet<IntArray>(ans);
+	  ans = store.asList();
 	  //         Code to add the constants
 	  final List<IntArray> constants = algebra.getConstants();// add the constants, if any
 	  for (IntArray arr : constants) {
-		  if (su.add(arr)) {
-			  ans.add(arr);
-			  rawList.add(arr.getArray());
-			  if (termMap != null) {
+		  if (store.add(arr.getArray())>=0) {
+			  if (termMapNotNull) {
 				  termMap.put(arr, NonVariableTerm.makeConstantTerm(algebra.constantToSymbol.get(arr)));
-			  } // end if (termMap!=null)
-		  } // end if (su.add(arr))
+			  } // end if (termMapNotNull)
+			  if ( imgOps != null ) {
+				  homomorphism.put(arr, imageAlgebra.getOperation(algebra.constantToSymbol.get(arr)).intValueAt(new int[0]));
+			  } // end if ( imgOps != null )
+		  } // end if (store.add(arr.getArray())>=0)
 	  } // end for (Intarray arr : constants)
-	  int currentMark = ans.size();
+	  int currentMark = store.size();
+	  if ( closedMark > currentMark ) closedMark = currentMark; // elems had duplicates
+	  // the images of the elements so far; the workers add those of the new ones
+	  final SGClosePowerWorker.Images images = imgOps == null ? null : new SGClosePowerWorker.Images();
+	  if ( imgOps != null ) {
+		  for ( int i = 0; i < currentMark; i++ ) images.set(i, homomorphism.get(store.getIntArray(i)).intValue());
+	  } // end if ( imgOps != null )
+	  // can't stop when all elements are found if we are looking for a homomorphism
+	  final int cardinality = imgOps == null ? algebra.cardinality() : 0;
+	  final int[] eltToFindRaw = eltToFind == null ? null : eltToFind.getArray();
+	  final ConstraintPlan constraint = blocks == null ? null : new ConstraintPlan(blocks, values);
+	  final SmallAlgebra imgAlg = imgOps == null ? null : imageAlgebra;
+	  final boolean[] symmetric = symmetricOperations(ops, isPower ? algebra.factors().subList(0, 1) : algebra.factors(), imgAlg);
+	  final AbsorptionTable[] absorption = AbsorptionTable.tables(ops, isPower ? algebra.factors().subList(0, 1) : algebra.factors(), imgAlg);
 	  int pass = 0;
-//	  final CloserTiming timing = reportNotNull ?  new CloserTiming(algebra, report) : null;
-	  HashMap<IntArray,Term> partResult = null;
-//	  double eltsPerNS = 0;
 	  long passStartTime = 0;
 	  long passFinishTime = 0;
-	  long chunksProcessedThisPass=0;
 	  while ( closedMark < currentMark ) { // for each pass
 		  // Report which pass we're on
-	      String str = "pass: " + pass + ", size: " + ans.size() + "("+(passFinishTime-passStartTime)+"ms)";
+	      String str = "pass: " + pass + ", size: " + store.size() + "("+(passFinishTime-passStartTime)+"ms)";
 	      passStartTime = System.currentTimeMillis();
 	      if (reportNotNull) {
-//	    	  timing.updatePass(ans.size());
 	    	  report.setPass(pass);
-	    	  report.setPassSize(ans.size());
+	    	  report.setPassSize(store.size());
 	    	  if (!suppressOutput) report.addLine(str);
 	      } else {
 	    	  if (!suppressOutput) System.out.println(str);
 	      } // end if-else (reportNotNull)
-		  int unusedPasses=0;
-	      final LinkedBlockingQueue<SGClosePowerThread.SGClosePowerChunk> feeder = new LinkedBlockingQueue<SGClosePowerThread.SGClosePowerChunk>(FEEDER_CAPACITY);
-	      final LinkedBlockingQueue<SGClosePowerThread.SGClosePowerResult> collector = new LinkedBlockingQueue<SGClosePowerThread.SGClosePowerResult>();
-	      SGClosePowerThread[] workers = new SGClosePowerThread[numWorkers]; 
-	      boolean[] workersFinished = new boolean[numWorkers];
-	      HashMap<IntArray,Term> prevTermMap = null;
-    	  prevTermMap = new HashMap<IntArray,Term>();
-    	  prevTermMap.putAll(termMap);
-	      for ( int i = 0; i < numWorkers; i++) {
-	    	  workers[i] = new SGClosePowerThread(feeder,power,opTables,algSize,arities,indicesPerChunk,closedMark,currentMark,rawList,ops,prevTermMap,symbols,collector,i,null,null,0);
-//	    	  workers[i].setPriority(Thread.MIN_PRIORITY);
-	    	  workersFinished[i]=false;
-	    	  workers[i].start();
-	      } // end for 0 <= i < numWorkers
+	      if ( maxSize > 0 && store.size() >= maxSize ) return ans;
 		  pass++;
-		  chunksProcessedThisPass=0;
-		  long eltsPerChunk=1;
-		  for ( int i = 0; i < indicesPerChunk; i++ ) {
-			  eltsPerChunk=eltsPerChunk*currentMark;
-		  } // end for 0 <= i < indicesPerChunk		  
-		  int chunksToGenerate = 0;
-		  for ( int r = 0; r < k; r++ ) {
-			  int temp = 1;
-			  for ( int i = 0; i < (arities[r]>indicesPerChunk?arities[r]-indicesPerChunk:0); i++ ) {
-				  temp = temp*currentMark;
-			  } // end for 0 <= i < (arities[r]>indicesPerChunk?arities[r]-indicesPerChunk:0)
-			  chunksToGenerate+=temp;
-		  } // end for 0 <= r < k
-		  
-		  final int maxIndex = currentMark-1;
-		  
-		  /**
-		   * This class fills the feeder <code>java.util.concurrent.BlockingQueue</code> in a separate thread.
-		   * @author Jonah Horowitz
-		   */
-		  class SGFeederRunner implements Runnable {
-			  private int opIndex=-1;
-			  private int arity;
-			  private SequenceIterator intArrayGen;
-			  private SGClosePowerThread.SGClosePowerChunk tempChunk = null;
-			  
-			  public SGFeederRunner() {
-				  nextOp();
-			  } // constructor()
-			  
-			  private void nextOp() {
-				  tempChunk=null;
-				  opIndex++;
-				  if ( opIndex>=k ) return;
-				  arity=arities[opIndex];
-				  while ( arity==0 && opIndex<k ) {
-					  opIndex++;
-					  arity=arities[opIndex];
-				  } // end while ( arity==0 && opIndex<k )
-				  int[] tempSegment = new int[arity<=indicesPerChunk?0:arity-indicesPerChunk];
-				  for ( int i = 0; i < tempSegment.length; i++ ) {
-					  tempSegment[i]=0;
-				  } // end for 0 <= i < tempSegment.length;
-				  intArrayGen=new SequenceIterator(tempSegment,maxIndex,0);
-			  } // end nextOp()
-			  
-			  public boolean hasMore() {
-				  return opIndex<k;
-			  } // end hasMore()
-			  
-			  public void fillQueue() {
-				  while ( opIndex < k  && feeder.remainingCapacity()!=0 ) {
-					  if ( tempChunk!=null && !feeder.offer(tempChunk) ) return;
-					  if ( !intArrayGen.hasNext() ) nextOp();
-					  tempChunk=new SGClosePowerThread.SGClosePowerChunk(opIndex,intArrayGen.next());
-				  } // end while ( opIndex<k && feeder.remainingCapacity()!=0 )
-			  } // end fillQueue()
-			  
-			  @Override
-			  public void run() {
-				  while ( hasMore() ) {
-					  fillQueue();
-					  try {
-						  Thread.sleep(SGClosePowerThread.SLEEP_TIME);
-					  } catch ( InterruptedException e ) {}
-				  } // end while ( hasMore() )
-				  while ( feeder.remainingCapacity()<numWorkers ) {
-					  try {
-						  Thread.sleep(SGClosePowerThread.SLEEP_TIME);
-					  } catch ( InterruptedException e ) {}
-				  } // end while ( feeder.remainingCapacity()<numWorkers )
-				  for ( int i = 0; i < numWorkers; i++ ) {
-					  feeder.offer(SGClosePowerThread.STOP_COMMAND);
-				  } // end for 0 <= i < numWorkers
-			  } // end run()
-		  } // end class SGFeederRunner
-		  
-		  SGFeederRunner feederRunner = new SGFeederRunner();
-		  Thread feederThread = null;
-		  if ( splitFeeder ) {
-			  feederThread = new Thread(feederRunner);
-			  feederThread.start();
-		  } // end if ( splitFeeder )
-/*		  int opIndex = 0;
-		  SGClosePowerChunk tempChunk = null;
-		  int arity = arities[opIndex];
-		  while ( arity==0 && opIndex < k) {
-			  opIndex++;
-			  if ( opIndex < k ) arity=arities[opIndex];
-		  } // end while ( arity==0 && opIndex < k )
-		  int[] tempSegment = new int[arity<=indicesPerChunk?0:arity-indicesPerChunk];
-		  for ( int i = 0; i < tempSegment.length; i++ ) {
-			  tempSegment[i]=0;
-		  } // end for 0 <= i < tempSegment.length
-		  SequenceIterator intArrayGen = new SequenceIterator(tempSegment,currentMark-1,0);/**/
-		  while (true) {
-			  // check for task cancellation
-			  if (Thread.currentThread().isInterrupted()) {
-				  for ( int i = 0; i < numWorkers; i++ ) {
-					  if ( workers[i]!=null && workers[i].isAlive() ) {
-						  try {
-							  workers[i].interrupt();
-						  } catch ( SecurityException e ) {
-							  if (reportNotNull) report.addLine("Could not cancel worker thread number " + i + ".");							  
-							  System.err.println("Could not cancel worker thread number " + i + ".");
-							  e.printStackTrace(System.err);
-						  } // end try-catch (SecurityException)
-					  } // end if ( workers[i]!=null && workers[i].isAlive() )
-				  } // end for 0 <= i < numWorkers
+		  final SGClosePowerWorker.Pass currentPass = isPower
+				  ? new SGClosePowerWorker.Pass(store, power, algSize, opTables, arities, ops,
+						  closedMark, currentMark, numThreads, eltToFindRaw, constraint, maxSize, cardinality)
+				  : new SGClosePowerWorker.Pass(store, factorSizes, factorTables, factorOps, arities,
+						  closedMark, currentMark, numThreads, eltToFindRaw, constraint, maxSize, cardinality);
+		  currentPass.setSymmetric(symmetric).setAbsorption(absorption);
+		  if ( imgOps != null ) currentPass.setHomomorphism(imgOps, imgTables, imageAlgebra.cardinality(), images);
+		  final SGClosePowerWorker[] workers = new SGClosePowerWorker[numThreads];
+		  final Thread[] threads = new Thread[numThreads];
+		  for ( int i = 0; i < numThreads; i++ ) {
+			  workers[i] = new SGClosePowerWorker(currentPass, termMapNotNull);
+			  threads[i] = new Thread(workers[i]);
+			  threads[i].start();
+		  } // end for 0 <= i < numThreads
+		  // wait for the pass to finish, keeping the report up to date
+		  for ( int i = 0; i < numThreads; i++ ) {
+			  while ( threads[i].isAlive() ) {
+				  try {
+					  threads[i].join(1000);
+				  } catch ( InterruptedException e ) {
+					  Thread.currentThread().interrupt();
+				  } // end try-catch InterruptedException
+				  if ( Thread.currentThread().isInterrupted() ) {
+					  currentPass.stop();
+					  for ( int j = 0; j < numThreads; j++ ) threads[j].interrupt();
+					  if (reportNotNull) {
+						  report.setSize(store.size()); 
+						  report.addEndingLine("cancelled...");
+					  } // end if (reportNotNull)
+					  return null;
+				  } // end if ( Thread.currentThread().isInterrupted() )
+				  if ( reportNotNull ) {
+					  report.setSize(store.size());
+					  final int itemsDone = currentPass.itemsDone();
+					  if ( itemsDone > 0 ) {
+						  report.setTimeLeft(nsToString((double)(currentPass.numberOfItems()-itemsDone)*(System.currentTimeMillis()-passStartTime)/itemsDone));
+					  } else {
+						  report.setTimeLeft("Unknown");
+					  } // end if-else ( itemsDone > 0 )
+				  } // end if ( reportNotNull )
+			  } // end while ( threads[i].isAlive() )
+		  } // end for 0 <= i < numThreads
+		  for ( int i = 0; i < numThreads; i++ ) {
+			  if ( workers[i].getFailure() != null ) {
+				  if (reportNotNull) report.addEndingLine("Worker " + i + " has died unexpectedly.");
+				  throw new RuntimeException("Uncaught exception in worker thread number " + i + ".", workers[i].getFailure());
+			  } // end if ( workers[i].getFailure() != null )
+		  } // end for 0 <= i < numThreads
+		  final int size = store.size();
+		  // make the terms of the new elements; their arguments are all from earlier passes
+		  if ( termMapNotNull ) {
+			  for ( int i = 0; i < numThreads; i++ ) {
+				  final int[] prov = workers[i].getProvenance();
+				  final int provSize = workers[i].getProvenanceSize();
+				  int pos = 0;
+				  while ( pos < provSize ) {
+					  final IntArray v = store.getIntArray(prov[pos++]);
+					  final int opIndex = prov[pos++];
+					  final int arity = arities[opIndex];
+					  List<Term> children = new ArrayList<Term>(arity);
+					  for ( int r = 0; r < arity; r++ ) {
+						  children.add(termMap.get(store.getIntArray(prov[pos++])));
+					  } // end for 0 <= r < arity
+					  final Term term = new NonVariableTerm(symbols[opIndex], children);
+					  termMap.put(v, term);
+					  if ( operationsNotNull ) {
+						  List<Variable> vars = new ArrayList<Variable>(generators.size());
+						  for ( IntArray ia : generators ) {
+							  vars.add((Variable)termMap.get(ia));
+						  } // end for ( IntArray ia : generators )
+						  Operation termOp = term.interpretation(rootAlgebra, vars, true);
+						  for (Operation op : operations) {
+							  if (Operations.equalValues(termOp, op)) {
+								  termMapForOperations.put(op, term);
+								  operationsFound++;
+								  if (operationsFound == operations.size()) return ans;
+							  } // end if ( Operations.equalValues(termOp, op) )
+						  } // end for ( Operation op : operations )
+					  } // end if ( operationsNotNull )
+				  } // end while ( pos < provSize )
+			  } // end for 0 <= i < numThreads
+		  } // end if ( termMapNotNull )
+		  if ( imgOps != null ) {
+			  for ( int index = currentMark; index < size; index++ ) {
+				  homomorphism.put(store.getIntArray(index), images.get(index));
+			  } // end for currentMark <= index < size
+			  final int[] failing = currentPass.getFailingApplication();
+			  if ( failing != null ) {
+				  final int arity = arities[failing[1]];
+				  List<Term> children = new ArrayList<Term>(arity);
+				  for ( int r = 0; r < arity; r++ ) {
+					  children.add(termMap.get(store.getIntArray(failing[2+r])));
+				  } // end for 0 <= r < arity
+				  failingEquation = new Equation(termMap.get(store.getIntArray(failing[0])), 
+						  new NonVariableTerm(symbols[failing[1]], children));
 				  if (reportNotNull) {
-					  report.setSize(ans.size()); 
-					  report.addEndingLine("cancelled...");
-				  } // end if (reportNotNull)
-				  return null;
-			  } // end if (Thread.currentThread().isInterrupted())
-			  
-			  if ( !splitFeeder ) {
-				  feederRunner.fillQueue();
-				  if ( !feederRunner.hasMore() ) {
-					  if ( feeder.remainingCapacity()>=numWorkers ) {
-						  for ( int i = 0; i < numWorkers; i++ ) {
-							  feeder.offer(SGClosePowerThread.STOP_COMMAND);
-						  } // end for 0 <= i < numWorkers
-					  } // end if ( feeder.remainingCapacity()>=numWorkers )
-				  } // end if ( !feederRunner.hasMore() )
-			  } // end if ( !splitFeeder )
-			  // Fill the feeder queue
-/*			  while ( opIndex<k ) {
-				  if ( tempChunk!=null && !feeder.offer(tempChunk) ) break;			
-				  if ( intArrayGen.hasNext() ) {
-					  tempChunk = new SGClosePowerChunk(opIndex,intArrayGen.next());
-					  chunksToGenerate--;
+					  report.setSize(size);
+					  report.addEndingLine("failing equation:\n" + failingEquation);
 				  } else {
-					  tempChunk=null;
-					  opIndex++;
-					  if ( opIndex>=k ) break;
-					  arity=arities[opIndex];
-					  while ( arity==0 && opIndex<k ) {
-						  opIndex++;
-						  arity=arities[opIndex];
-					  } // end while ( arity==0 && opIndex<k )
-					  if ( opIndex>= k ) break;
-					  tempSegment = new int[arity<=indicesPerChunk?0:arity-indicesPerChunk];
-					  for ( int i = 0; i < tempSegment.length; i++ ) {
-						  tempSegment[i]=0;
-					  } // end for 0 <= i < tempSegment.length
-					  intArrayGen = new SequenceIterator(tempSegment,currentMark-1,0);
-				  } // end if-else ( intArrayGen.hasNext() )
-			  } // end while (true)/**/
-			  
-			  // check for completion of pass, notify workers
-/*			  if ( opIndex>=k ) {
-				  if ( feeder.remainingCapacity() >= numThreads-1 ) {
-					  for ( int i = 0; i < numThreads-1; i++ ) {
-						  feeder.offer(SGClosePowerThread.STOP_COMMAND);
-					  } // end for 0 <= i < numThreads-1
-				  } // end if ( feeder.remainingCapacity() >= numThreads-1 )
-			  } // end if ( opIndex>=k )/**/
-			  
-			  if ( collector.size()==0 ) unusedPasses++;
-			  if ( unusedPasses>=100 ) {
-				  try {
-					  Thread.sleep(1000);
-				  } catch ( InterruptedException e ) {}
-				  unusedPasses=0;
-			  }
-//			  System.err.println("Collector size: " + collector.size()); // DEBUG
-			  for ( int q = 0; q < PROCESS_PER_LOOP; q++ ) {
-			  // collect and evaluate partial answers
-				  if ( collector.size() == 0 ) break;
-			  partResult = collector.poll().termMap;
-			  if ( partResult!=null && partResult.size()==1 && partResult.containsValue(null) ) {
-				  workersFinished[((IntArray)partResult.keySet().toArray()[0]).get(0)] = true;
-			  } else if ( partResult!=null ) {
-				  chunksProcessedThisPass++;
-				  List<IntArray> partAns = new ArrayList<IntArray>(partResult.keySet());
-				  for ( IntArray v : partAns ) {
-					  if ( su.add(v) ) {
-						  ans.add(v);
-						  rawList.add(v.getArray());
-//						  if (reportNotNull) timing.incrementNextPassSize();
-						  if ( termMap != null ) {
-							  termMap.put(v, partResult.get(v));
-							  if ( operationsNotNull ) {
-								  Term term = partResult.get(v);
-								  List<Variable> vars = new ArrayList<Variable>(generators.size());
-								  for ( IntArray ia : generators ) {
-									  vars.add((Variable)termMap.get(ia));
-								  } // end for ( IntArray ia : generators )
-								  Operation termOp = term.interpretation(rootAlgebra, vars, true);
-					              for (Operation op : operations) {
-					                  if (Operations.equalValues(termOp, op)) {
-					                	  termMapForOperations.put(op, term);
-					                	  operationsFound++;
-					                	  if (operationsFound == operations.size()) return ans;
-					                  } // end if ( Operations.equalValues(termOp, op) )
-					              } // end for ( Operation op : operations )					              
-							  } // end if ( operationsNotNull )
-						  } // end if ( termMap != null )
-						  if ( eltToFindNotNull && v.equals(eltToFind) ) {
-							  if ( reportNotNull ) {
-								  report.setSize(ans.size()); 
-								  report.addEndingLine("Closing done, found " + eltToFind + ", at " + ans.size());
-							  } // end if ( reportNotNull )
-							  return ans;
-						  } // end if ( eltToFindNotNull && v.equals(eltToFind) )
-						  if ( eltsToFindNotNull && minusOne.equals(indecesMapOfFoundElts.get(v)) ) {
-							  final int index = ans.size()-1;
-							  indecesMapOfFoundElts.put(v, index);
-							  specialEltsFound++;
-							  System.out.println("Found " + v);
-							  if (reportNotNull) report.addLine("Found " + v + ", at " + index);
-							  if ( specialEltsFound == eltsToFind.size() ) {
-								  if (reportNotNull) report.addEndingLine("Closing done, found all " + specialEltsFound + " elements.");
-								  allEltsFound = true;
-								  return ans;
-							  } // end if ( specialEltsFound == eltsToFind.size() )
-						  } // end if ( eltsToFindNotNull && minusOne.equals(indecesMapOfFoundElts.get(v)) )
-						  if ( blocksNotNull ) {
-							  boolean found = false;
-							  if ( valuesNotNull ) {
-								  if ( v.satisfiesConstraint(blocks,values) ) found = true;
-							  } else {
-								  if ( v.satisfiesConstraint(blocks) ) found = true;
-							  } // end if-else ( valuesNotNull )
-							  if (found) {
-								  eltToFind = v;
-								  if (reportNotNull) {
-									  report.setSize(ans.size()); 
-									  report.addEndingLine("Closing done, found " + eltToFind + ", at " + ans.size() );
-								  } // end if (reportNotNull)
-								  return ans;
-							  } // end if (found)
-						  } // end if ( blocksNotNull )
-						  final int size = ans.size();
-						  if ( algebra.cardinality()>0 && size==algebra.cardinality() ) {
-							  if (reportNotNull) {
-								  report.setSize(size);
-								  report.addEndingLine("Found all " + size + " elements.");
-							  } // end if (reportNotNull)
-							  return ans;
-						  } // end if ( algebra.cardinality()>0 && size==algebra.cardinality() )
-					  } // end if ( su.add(v) )
-				  } // end for ( IntArray v : partAns )
-			  } // end else if ( partResult != null )
-			  } // end for 0 <= q < PROCESS_PER_LOOP
-			  
-			  // check for dead workers, print their stack trace to the error stream and notify the user
-			  for ( int i = 0; i < numWorkers; i++ ) {
-				  if ( workers[i]!=null && !workers[i].isAlive() && workers[i].getStatus()==SGClosePowerThread.RUNNING ) {
-					  System.err.println("Uncaught exception in worker thread number " + i + ".");
-					  StackTraceElement[] blah = workers[i].getStackTrace();
-					  for ( int j = 0; j < blah.length; j++ ) {
-						  System.err.println(blah[j]);
-					  }
-					  workers[i]=null;
-					  if (reportNotNull) report.addLine("Worker " + i + " has died unexpectedly.");
-				  } // end if ( !workers[i].isAlive() && workers[i].status.getStatus()==SmallThreadsafeProgressReport.RUNNING )
-			  } // end for 0 <= i < numWorkers
-
-			  // For timing and reporting
-/*			  double chunksPerNS = 0;
-			  for ( int i = 0; i < numThreads-1; i++ ) {
-				  if ( workers[i] != null ) chunksPerNS+=workers[i].status.getChunksPerNS();
-			  } // end for 0 <= i < numThreads-1
-			  if ( chunksPerNS <= 0 ) System.err.println("chunksPerNS: " + chunksPerNS);/**/
-
-			  // check for completion of work this pass
-			  boolean allDone = true;
-			  for ( int i = 0; i < numWorkers; i++ ) {
-				  allDone = allDone && workersFinished[i];
-			  } // for 0 <= i < numThreads-1
-			  if ( allDone ) {
-//				  eltsPerNS=(eltsPerNS+eltsPerChunk*chunksPerNS)/2;
-				  break;			  
-			  } // end if ( allDone )
-
-			  // calculate the timing of it all
+					  System.out.println("failing equation:\n" + failingEquation);
+					  System.out.println("size so far: " + size);
+				  } // end if-else (reportNotNull)
+				  return ans;
+			  } // end if ( failing != null )
+		  } // end if ( imgOps != null )
+		  final int found = currentPass.getFoundIndex();
+		  if ( found >= 0 ) {
+			  if ( eltToFind == null ) eltToFind = store.getIntArray(found); // found by the blocks and values constraint
+			  if ( reportNotNull ) {
+				  report.setSize(size); 
+				  report.addEndingLine("Closing done, found " + eltToFind + ", at " + (found+1));
+			  } // end if ( reportNotNull )
+			  return ans;
+		  } // end if ( found >= 0 )
+		  if ( eltsToFindNotNull ) {
+			  for ( int index = currentMark; index < size; index++ ) {
+				  final IntArray v = store.getIntArray(index);
+				  if ( minusOne.equals(indecesMapOfFoundElts.get(v)) ) {
+					  indecesMapOfFoundElts.put(v, index);
+					  specialEltsFound++;
+					  System.out.println("Found " + v);
+					  if (reportNotNull) report.addLine("Found " + v + ", at " + index);
+					  if ( specialEltsFound == eltsToFind.size() ) {
+						  if (reportNotNull) report.addEndingLine("Closing done, found all " + specialEltsFound + " elements.");
+						  allEltsFound = true;
+						  return ans;
+					  } // end if ( specialEltsFound == eltsToFind.size() )
+				  } // end if ( minusOne.equals(indecesMapOfFoundElts.get(v)) )
+			  } // end for currentMark <= index < size
+		  } // end if ( eltsToFindNotNull )
+		  if ( cardinality>0 && size>=cardinality ) {
 			  if (reportNotNull) {
-				  report.setSize(ans.size());
-				  if ( chunksProcessedThisPass > 0 ) {
-					  report.setTimeLeft(nsToString((chunksToGenerate+feeder.size())*(System.currentTimeMillis()-passStartTime)/chunksProcessedThisPass));
-				  } else {
-					  report.setTimeLeft("Unknown");
-				  } // end if-else ( chunksProcessedThisPass > 0 )
-/*				  if ( chunksPerNS > 0 ) {
-					  report.setTimeLeft(nsToString((chunksToGenerate+feeder.size())/chunksPerNS));
-				  } else {
-					  report.setTimeLeft("Unknown");
-				  } // end if-else ( chunksPerNS > 0 )/**/
-				  long futureElts = 0;
-				  long size = ans.size();
-				  for ( int r = 0; r < k; r++ ) {
-					  long temp = 1;
-					  long temp2 = 1;
-					  for ( int i = 0; i < arities[r]; i++ ) {
-						  temp=temp*size;
-						  temp2=temp2*currentMark;
-					  } // end for 0 <= i < arities[r]
-					  futureElts+=temp-temp2;
-				  } // end for 0 <= r < k
-				  if ( chunksProcessedThisPass > 0 ) {
-					  report.setTimeNext(nsToString(futureElts*(System.currentTimeMillis()-passStartTime)/(eltsPerChunk*chunksProcessedThisPass)));
-				  } else {
-					  report.setTimeLeft("Unknown");
-				  }
-/*				  double denom = eltsPerNS+eltsPerChunk*chunksPerNS;
-				  if ( denom > 0 ) {
-					  report.setTimeNext(nsToString(futureElts/denom));
-				  } else {
-					  report.setTimeNext("Unknown");
-				  } // end if-else ( denom > 0 )/**/
-			  } // if (reportNotNull)
-		  } // end while (true)
+				  report.setSize(size);
+				  report.addEndingLine("Found all " + size + " elements.");
+			  } // end if (reportNotNull)
+			  return ans;
+		  } // end if ( algebra.cardinality()>0 && size>=algebra.cardinality() )
 		  closedMark=currentMark;
-		  currentMark=ans.size();
+		  currentMark=size;
+		  if ( constraint != null ) constraint.reorder();
 		  passFinishTime = System.currentTimeMillis();
 	  } // end while ( closedMark < currentMark )
 	  if (reportNotNull) {
-	      final String str = "done closing, size = " + ans.size();
-	      report.setSize(ans.size());
+	      final String str = "done closing, size = " + store.size();
+	      report.setSize(store.size());
 	      report.addEndingLine(str);
 	  } // end if (reportNotNull)
       completed = true;
@@ -1412,6 +1313,14 @@ if (false) {
       return ans;
   } // end sgClosePowerParallel
   
+  /**
+   * The table of <code>op</code>, with the default values filled in, or null if it has none.
+   */
+  private static int[] totalTable(Operation op) {
+	  if (op instanceof OperationWithDefaultValue) return ((OperationWithDefaultValue)op).getTotalTable();
+	  return op.getTable();
+  } // end totalTable(Operation)
+  
   /**
    * Should be called msToString, as it converts milliseconds into a human-readable string
    */
@@ -1528,6 +1437,286 @@ if (false) {
     return suppressOutput;
   }
 
+  public boolean isCompactTerms() { return compactTerms; }
+
+  /**
+   * If this is true, <code>sgClose</code> keeps the operation and the
+   * arguments giving each new element in a {@link TermProvenance} rather
+   * than making its term, and <code>getTermMap</code> is a read only view
+   * making the terms as they are asked for. This uses much less memory
+   * when only a few of the terms are wanted. The map passed in 
+   * is not changed.
+   */
+  public void setCompactTerms(boolean compactTerms) {
+    this.compactTerms = compactTerms;
+  }
+
+  /**
+   * A new TermProvenance for the operations of the algebra if we are
+   * keeping terms compactly, otherwise null.
+   */
+  private TermProvenance makeProvenance(Map<IntArray,Term> termMap, int expectedSize) {
+    if (!compactTerms || termMap == null) return null;
+    final List<Operation> ops = algebra.operations();
+    final OperationSymbol[] symbols = new OperationSymbol[ops.size()];
+    for (int i = 0; i < symbols.length; i++) {
+      symbols[i] = ops.get(i).symbol();
+    }
+    return new TermProvenance(symbols, 2 * expectedSize);
+  }
+
+  /**
+   * Symmetry is only tested on operations with at most this many
+   * argument tuples.
+   */
+  static final double MAX_SYMMETRY_TEST = 1 << 20;
+
+  /**
+   * Entry i is true if operation i of <code>ops</code> has arity at least
+   * 2 and is totally symmetric in each of <code>algebras</code> and in
+   * <code>image</code>, if that is not null. Then the value of a product
+   * of these algebras, or of a homomorphism into <code>image</code>, at
+   * an argument tuple only depends on the sorted tuple, so the closures
+   * only need to apply the operation to nondecreasing index tuples.
+   * Since <code>sequenceIncrementor</code> runs through the tuples in
+   * lexicographic order, and the sorted tuple is the first of its
+   * permutations, the elements are found in the same order and with the
+   * same terms as when all tuples are tried.
+   */
+  static boolean[] symmetricOperations(List<Operation> ops,
+                              List<? extends Algebra> algebras, Algebra image) {
+    final boolean[] ans = new boolean[ops.size()];
+    final Set<Algebra> distinct = Collections.newSetFromMap(
+                                      new IdentityHashMap<Algebra,Boolean>());
+    distinct.addAll(algebras);
+    if (image != null) distinct.add(image);
+    for (int i = 0; i < ans.length; i++) {
+      final OperationSymbol sym = ops.get(i).symbol();
+      if (sym.arity() < 2) continue;
+      boolean symmetric = true;
+      for (Algebra alg : distinct) {
+        final Operation op = alg.getOperation(sym);
+        if (op == null
+            || Math.pow(alg.cardinality(), sym.arity()) > MAX_SYMMETRY_TEST
+            || !op.isTotallySymmetric()) {
+          symmetric = false;
+          break;
+        }
+      }
+      ans[i] = symmetric;
+    }
+    return ans;
+  }
+
+  /**
+   * An incrementor for the argument index tuples of one pass: all
+   * tuples with entries below <code>currentMark</code> and at least one
+   * at least <code>closedMark</code>, or only the nondecreasing ones if
+   * <code>symmetric</code>. <code>argIndeces</code> is set to the first.
+   */
+  static ArrayIncrementor passIncrementor(int[] argIndeces,
+                  int closedMark, int currentMark, boolean symmetric) {
+    Arrays.fill(argIndeces, 0);
+    argIndeces[argIndeces.length - 1] = closedMark;
+    if (symmetric) {
+      return SequenceGenerator.nondecreasingSequenceIncrementor(
+                                  argIndeces, currentMark - 1, closedMark);
+    }
+    return SequenceGenerator.sequenceIncrementor(
+                                  argIndeces, currentMark - 1, closedMark);
+  }
+
+  /**
+   * Close in the product of the coordinates <code>reduction</code> keeps
+   * and lift the elements and terms back.
+   */
+  private List<IntArray> sgCloseReduced(CoordinateReduction reduction,
+                                        List<IntArray> elems, int closedMark,
+                                        Map<IntArray,Term> termMap) {
+    if (report != null) {
+      report.addLine("closing in " + reduction.numberKept() + " of "
+          + algebra.getNumberOfFactors() + " coordinates, the others "
+          + "are determined by them");
+    }
+    final List<IntArray> redElems = new ArrayList<IntArray>(elems.size());
+    final Map<IntArray,Term> redTermMap =
+                    termMap == null ? null : new HashMap<IntArray,Term>();
+    for (IntArray elt : elems) {
+      final IntArray red = reduction.project(elt);
+      redElems.add(red);
+      if (redTermMap != null && termMap.containsKey(elt)) {
+        redTermMap.put(red, termMap.get(elt));
+      }
+    }
+    final Closer closer =
+       new Closer(reduction.getReducedAlgebra(), redElems, redTermMap);
+    closer.setProgressReport(report);
+    closer.setSuppressOutput(suppressOutput);
+    closer.setMaxSize(maxSize);
+    closer.setCompactTerms(compactTerms);
+    closer.setSpillDirectory(spillDirectory);
+    // an element with the wrong dropped coordinates is not in the closure.
+    if (eltToFind != null && reduction.isConsistent(eltToFind)) {
+      closer.setElementToFind(reduction.project(eltToFind));
+    }
+    final List<IntArray> red = closer.sgClose(redElems, closedMark, redTermMap);
+    completed = closer.completed;
+    if (red == null) return null;
+    final PackedTupleStore store = makeTupleStore(red.size());
+    for (IntArray elt : red) {
+      store.add(reduction.lift(elt.getArray()));
+    }
+    ans = store.asList();
+    if (termMap != null) {
+      final Map<IntArray,Term> redTerms = closer.getTermMap();
+      if (compactTerms) {
+        // a view, so the terms are still only made when asked for.
+        this.termMap = new AbstractMap<IntArray,Term>() {
+            public Term get(Object key) {
+              if (!(key instanceof IntArray)) return null;
+              final IntArray elt = (IntArray)key;
+              if (elt.universeSize() != algebra.getNumberOfFactors()
+                  || !reduction.isConsistent(elt)) return null;
+              return redTerms.get(reduction.project(elt));
+            }
+            public boolean containsKey(Object key) {
+              return get(key) != null;
+            }
+            public int size() { return ans.size(); }
+            public Set<Map.Entry<IntArray,Term>> entrySet() {
+              final Set<Map.Entry<IntArray,Term>> entries =
+                                 new LinkedHashSet<Map.Entry<IntArray,Term>>();
+              for (int i = 0; i < ans.size(); i++) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<IntArray,Term>(
+                                    ans.get(i), redTerms.get(red.get(i))));
+              }
+              return entries;
+            }
+          };
+      }
+      else {
+        for (int i = 0; i < ans.size(); i++) {
+          termMap.put(ans.get(i), redTerms.get(red.get(i)));
+        }
+      }
+    }
+    return ans;
+  }
+
+  public boolean isReduceCoordinates() { return reduceCoordinates; }
+
+  /**
+   * If this is true, <code>sgClose</code> first looks for coordinates
+   * which are determined by others on the subalgebra being generated,
+   * closes in the product of the remaining coordinates and then lifts
+   * the elements back, which saves time and space when many coordinates
+   * are, as in the free algebras. The elements and terms are the same.
+   * It is not used when looking for a homomorphism, for operations, for
+   * a list of elements or a blocks and values constraint, or when
+   * checkpointing.
+   */
+  public void setReduceCoordinates(boolean v) {
+    this.reduceCoordinates = v;
+  }
+
+  public File getSpillDirectory() { return spillDirectory; }
+
+  /**
+   * If this is set, <code>sgClose</code> keeps the elements in a
+   * {@link MappedTupleStore} whose file is in <code>dir</code>, so the
+   * operating system can page them out, and closures much larger than
+   * the heap can finish. The heap still holds the store's hash index
+   * and an <code>int</code> hash of each element, which come to between
+   * 11 and 18 bytes an element, depending on how full the index is,
+   * however many coordinates the elements have. <code>setCompactTerms</code> adds
+   * about 12 bytes an element and 4 for each argument, while a map
+   * of terms holds each element as an <code>IntArray</code>, so this
+   * should be used with compact terms or without terms. The parallel
+   * closures do not use it.
+   * <p>
+   * The store belongs to this <code>Closer</code>, which closes its file
+   * when the closure returns, so running many closures does not use up
+   * file descriptors. The answer can still be read afterwards, since
+   * the mapping lasts until the store is garbage collected.
+   */
+  public void setSpillDirectory(File dir) {
+    this.spillDirectory = dir;
+  }
+
+  /**
+   * A store for the elements of the closure: on the heap, or mapped
+   * from a file in <code>spillDirectory</code> if that is set.
+   */
+  private PackedTupleStore makeTupleStore(int expectedSize) {
+    if (spillDirectory == null) return algebra.makeTupleStore(expectedSize);
+    closeSpillStore();
+    try {
+      spillStore = MappedTupleStore.create(spillDirectory,
+                      algebra.getNumberOfFactors(), expectedSize,
+                      Math.max(algebra.maxFactorSize() - 1, 0));
+      return spillStore;
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("could not make the tuple file in "
+                                      + spillDirectory + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Close the file of the mapped store of the last closure, if there
+   * is one. Its elements can still be read.
+   */
+  private void closeSpillStore() {
+    if (spillStore == null) return;
+    try {
+      spillStore.close();
+    }
+    catch (IOException e) {
+      // the elements are all written, so this does not hurt the answer.
+      if (report != null) report.addLine("could not close the tuple file: " + e.getMessage());
+    }
+    spillStore = null;
+  }
+
+  public File getCheckpointFile() { return checkpointFile; }
+
+  /**
+   * If this is set, <code>sgClose</code> saves the elements, their terms
+   * and the homomorphism, if any, to <code>file</code> after each pass,
+   * so a long closure can be continued with <code>Closer2.resume</code>.
+   */
+  public void setCheckpointFile(File file) {
+    this.checkpointFile = file;
+  }
+
+  public long getCheckpointInterval() { return checkpointInterval; }
+
+  /**
+   * The least number of milliseconds between two checkpoints.
+   */
+  public void setCheckpointInterval(long ms) {
+    this.checkpointInterval = ms;
+  }
+
+  /**
+   * Save the closure to <code>checkpointFile</code> if it is set and the
+   * last checkpoint is old enough. Only call this between passes.
+   */
+  private void checkpoint(int closedMark, int pass, Map<IntArray,Term> termMap) {
+    if (checkpointFile == null) return;
+    final long now = System.currentTimeMillis();
+    if (now - lastCheckpoint < checkpointInterval) return;
+    try {
+      new ClosureCheckpoint(ans, closedMark, pass, termMap, homomorphism).write(checkpointFile);
+      lastCheckpoint = now;
+    }
+    catch (IOException e) {
+      // a failed checkpoint should not stop the closure
+      if (report != null) report.addLine("checkpoint failed: " + e.getMessage());
+      else System.err.println("checkpoint failed: " + e.getMessage());
+    }
+  }
+
   /**
    * Setting this to true will suppress the output about
    * the pass. Useful when calling closing on many small
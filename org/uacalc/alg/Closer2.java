@@ -1,7 +1,10 @@
 package org.uacalc.alg;
 
 import java.util.*;
+import java.io.*;
+import java.net.InetSocketAddress;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.*;
 
 import org.uacalc.util.*;
@@ -9,6 +12,7 @@ import org.uacalc.terms.*;
 import org.uacalc.eq.*;
 import org.uacalc.alg.op.*;
 import org.uacalc.ui.tm.ProgressReport;
+import org.uacalc.io.ClosureCheckpoint;
 
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -22,12 +26,17 @@ public class Closer2 {
 	public static final int SERIAL = 0;
 	public static final int PARALLEL = 1;
 	public static final int EQUAL_WORKLOAD = 2;
+	public static final int FORK_JOIN = 3;
+	public static final int DISTRIBUTED = 4;
 	public static final int PROGRAM_CHOICE = -1;
 	
 	public static int FEEDER_CAPACITY=100000; // Maximum number of chunks the feeder queue can hold
 	public static int THREAD_PRIORITY=Thread.NORM_PRIORITY; // Priority of the worker/feeder threads
 	public static int MAX_UNUSED_PASSES=100; // Maximum number of consecutive passes the collector thread can go idle before taking a nap
 	public static int PROCESS_PER_LOOP=1000; // How many partial results the collector thread should process per loop
+	public static double FORK_JOIN_MIN_PASS_WORK=1<<16; // PROGRAM_CHOICE uses FORK_JOIN for passes trying at least this many argument tuples
+	public static double FORK_JOIN_MIN_TASK_WORK=1<<10; // A FORK_JOIN task is not split below this many argument tuples
+	public static int FORK_JOIN_SPLITS_PER_THREAD=32; // A FORK_JOIN pass is split into about this many tasks per thread
 	
 	private Algebra algebra; // The algebra with respect to which we are closing
 	private List<IntArray> ans = null; // Eventually, the subuniverse itself
@@ -47,6 +56,7 @@ public class Closer2 {
 	private Map<Operation,Term> termMapForOperations = null; // A term map for <code>org.uacalc.alg.op.Operation</code>s
 	private int[][] blocks = null; // A blocks and values constraint as in intArray (?)
 	private int[][] values = null;
+	private ConstraintPlan constraint = null; // blocks and values compiled, made when needed
 	private int maxSize=-1; // Stop closing if we have found this many elements
 	private ProgressReport report = null; // To where we should be reporting progress data
 	private boolean suppressOutput = false; // Whether or not to suppress output
@@ -58,6 +68,11 @@ public class Closer2 {
 	
 	private boolean stopEachPass=false; // Only used for testing 
 	
+	private File checkpointFile = null; // If not null, the closure is saved here between passes
+	private long checkpointInterval = 0; // The least number of milliseconds between checkpoints
+	private long lastCheckpoint = 0; // When the last checkpoint was written
+	private int resumePass = 0; // The pass to start from when resuming
+	
 	public Closer2( Algebra alg, List<IntArray> gens ) {
 		algebra = alg;
 		setGenerators(gens);
@@ -110,9 +125,9 @@ public class Closer2 {
 	public List<IntArray> getElementsToFind() { return eltsToFind; }
 	public boolean allElementsFound() { return allEltsFound; }
 	public int[][] getBlocks() { return blocks; }
-	public Closer2 setBlocks(int[][] newBlocks) { blocks=newBlocks; return this; }
+	public Closer2 setBlocks(int[][] newBlocks) { blocks=newBlocks; constraint=null; return this; }
 	public int[][] getValues() { return values; }
-	public Closer2 setValues(int[][] newValues) { values=newValues; return this; }
+	public Closer2 setValues(int[][] newValues) { values=newValues; constraint=null; return this; }
 	public int getMaxSize() { return maxSize; }
 	public Closer2 setMaxSize(int size) { maxSize=size; return this; }
 	public Closer2 setProgressReport(ProgressReport newReport) { report=newReport; return this; }
@@ -131,6 +146,41 @@ public class Closer2 {
 	public boolean getStopEachPass() { return stopEachPass; }
 	public boolean getCompleted() { return completed; }
 	public Closer2 setForceNonPower(boolean newVal) { forceNonPower = newVal; return this; }
+	public File getCheckpointFile() { return checkpointFile; }
+	public Closer2 setCheckpointFile(File file) { checkpointFile=file; return this; }
+	public File getSpillDirectory() { return spillDirectory; }
+	/**
+	 * If this is set, closures in a power keep their elements in a <code>MappedTupleStore</code>
+	 * whose file is in <code>dir</code>, so the operating system can page them out and closures
+	 * much larger than the heap can finish. The passes are then all <code>SERIAL</code>, reading
+	 * the arguments straight from the store.
+	 * <p>
+	 * The heap still holds the store's hash index and an <code>int</code> hash of each element,
+	 * which come to between 11 and 18 bytes an element, depending on how full the index is,
+	 * however many coordinates the elements have. The terms and the homomorphism, if they are
+	 * kept, are maps from the elements, so they are on the heap too, and should usually be off.
+	 * <p>
+	 * The file is closed when the closure completes, by <code>closeSpillFile</code>, or when the
+	 * next closure starts; the elements can still be read. <code>addGenerators</code> on a
+	 * closure whose file is closed copies the elements into a new file first.
+	 */
+	public Closer2 setSpillDirectory(File dir) { spillDirectory=dir; return this; }
+	public List<InetSocketAddress> getWorkers() { return workerAddresses; }
+	/**
+	 * Sets the addresses of <code>ClosureWorker</code>'s to use for <code>DISTRIBUTED</code>
+	 * passes on a power. With <code>PROGRAM_CHOICE</code> they are used for the large passes.
+	 */
+	public Closer2 setWorkers(List<InetSocketAddress> addresses) { workerAddresses=addresses; return this; }
+	/**
+	 * The statistics of each pass done so far, in order
+	 */
+	public List<PassStatistics> getStatistics() { return Collections.unmodifiableList(statistics); }
+	/**
+	 * Writes the statistics of each pass done so far as a line of JSON
+	 */
+	public void writeStatistics(Writer out) throws IOException { PassStatistics.writeJsonLines(statistics, out); }
+	public long getCheckpointInterval() { return checkpointInterval; }
+	public Closer2 setCheckpointInterval(long ms) { checkpointInterval=ms; return this; }
 	
 	public Closer2 setGenerators(List<IntArray> gens) {
 		if ( gens==null ) return this;
@@ -180,13 +230,24 @@ public class Closer2 {
 	} // end setElementsToFind(List<IntArray>)
 	
 	private CloserTiming timing=null; // Timing tracker
+	private final List<PassStatistics> statistics = new ArrayList<PassStatistics>(); // The statistics of the passes so far
+	private PassStatistics stats = null; // The statistics of the current pass
+	private int resizesBefore; // The number of times the fingerprint index had grown before this pass
 	private int pass; // Which pass number we're currently calculating
 	private int numOfOps; // The number of operations in the base algebra
 	private int closedMark=0; // The point in ans to which we have already closed
 	private int currentMark=-1; // The point in ans to which we will close this pass
 	private Operation[] imgOps = null; // Operations in the imageAlgebra
 	private List<int[]> rawList; // The raw list of subuniverse elements
-	private HashSet<IntArray> su; // The set of all subuniverse elements
+	private HashSet<IntArray> su; // The set of all subuniverse elements, kept only for the passes using it; see su()
+	private int suSize; // The number of elements of ans put into su
+	private List<InetSocketAddress> workerAddresses = null; // The ClosureWorkers for DISTRIBUTED passes
+	private ClosureWorker.Connection[] workerConnections = null; // Open while a closure uses the workers
+	private int sentToWorkers; // The number of elements of rawList the workers have
+	private FingerprintIndex fingerprints; // An index of rawList used by the serial passes
+	private File spillDirectory = null; // Where closures in a power keep their elements, if set
+	private MappedTupleStore spillStore = null; // The elements, when they are kept in spillDirectory
+	private boolean spillFileOpen = false; // Whether elements can still be added to spillStore
 	private int operationsFound; // The number of operations already found
 	private int algSize; // The size of the factor algebra
 	private List<Operation> ops; // Operations of the factor algebra
@@ -196,6 +257,9 @@ public class Closer2 {
 	private int power; // The number of factors in a power algebra
 	private int[][] imgOpTables; // The operation tables of the image algebra
 	private int imgAlgSize;
+	private boolean closingPower = false; // Whether we are using the special algorithm for power algebras
+	private boolean[] symmetric; // The totally symmetric operations, for which only nondecreasing arguments are tried
+	private AbsorptionTable[] absorption; // Argument patterns for which the value of an operation is an argument
 	
 	private void initializeClosure() {
 		if ( report!=null ) report.addStartLine("subpower closing...");
@@ -230,21 +294,22 @@ public class Closer2 {
 			symbols[i]=op.symbol();
 		} // end for 0 <= i < numOfOps
 		if (ans==null || ans.size()==0) ans=new ArrayList<IntArray>(generators);
-		pass=0;
+		pass=resumePass;
+		resumePass=0; // only the closure started by resume continues its numbering
 		operationsFound=0;
 		rawList=new ArrayList<int[]>();
-		for ( IntArray ia : generators ) {
+		for ( IntArray ia : ans ) {
 			rawList.add(ia.getArray());
-		} // end for ( IntArray ia : generators )
-		su = new HashSet<IntArray>(ans);
+		} // end for ( IntArray ia : ans )
+		su = null;
 		for ( Operation op : ops ) {
 			if ( op.arity()==0 ) {
 				IntArray ia = (IntArray)op.valueAt(new ArrayList<IntArray>());
-				if (su.add(ia)) {
+				if ( fingerprints().indexOf(ia.getArray())<0 ) {
 					ans.add(ia);
 					rawList.add(ia.getArray());
 					if (termMap!=null) termMap.put(ia, NonVariableTerm.makeConstantTerm(op.symbol()));
-				} // end if (su.add(ia))
+				} // end if ( fingerprints().indexOf(ia.getArray())<0 )
 			} // end if (op.arity()==0)
 		} // end for ( Operation op : ops )
 /*		final List<IntArray> constants = algebra.getConstants();
@@ -257,6 +322,11 @@ public class Closer2 {
 		} // end for ( IntArray arr : constants )/**/
 		currentMark=ans.size();
 		if (report!=null) timing = new CloserTiming(algebra, report);
+		if ( blocks!=null ) constraintPlan(); // before any worker threads use it
+		final List<? extends Algebra> factors = (algebra instanceof BigProductAlgebra)?((BigProductAlgebra)algebra).factors()
+				:(algebra instanceof SmallAlgebra)?Collections.singletonList((SmallAlgebra)algebra):null;
+		symmetric = factors==null?new boolean[numOfOps]:Closer.symmetricOperations(ops, factors, imgOps!=null?imageAlgebra:null);
+		absorption = factors==null?new AbsorptionTable[numOfOps]:AbsorptionTable.tables(ops, factors, imgOps!=null?imageAlgebra:null);
 	} // end initializeClosure()
 		
 	public List<IntArray> sgClose( List<IntArray> elems, int newClosedMark, Map<IntArray,Term> tM ) {
@@ -284,14 +354,19 @@ public class Closer2 {
 			} // end if ( report!=null )
 			pass++;
 			boolean result = false;
-			switch (currentPassType()) {
+			final int passType = currentPassType();
+			startStatistics(passType);
+			switch (passType) {
 				case SERIAL: result = onePassSerial(); break;
 				case PARALLEL: result = onePassParallel(); break;
 				case EQUAL_WORKLOAD: result = onePassEqualWorkload(); break;
-			} // end switch (currentPassType())
+			} // end switch (passType)
+			finishStatistics();
 			if (!result) return completed?ans:null;
 			closedMark=currentMark;
 			currentMark=ans.size();
+			checkpoint();
+			if ( blocks!=null ) constraintPlan().reorder();
 			if (imgOps==null && algebra.cardinality()>0 && currentMark>=algebra.cardinality()) {
 				completed = true;
 				break;
@@ -303,13 +378,215 @@ public class Closer2 {
 	} // end sgClose()
 	
 	/**
-	 * Determines which method should be used to calculate the upcoming pass
+	 * Saves the closure to <code>checkpointFile</code>, if there is one and the last checkpoint is 
+	 * at least <code>checkpointInterval</code> milliseconds old. Should only be called between passes.
+	 * A failed checkpoint is reported but does not stop the closure.
+	 */
+	private void checkpoint() {
+		if ( checkpointFile==null ) return;
+		final long now = System.currentTimeMillis();
+		if ( now-lastCheckpoint<checkpointInterval ) return;
+		try {
+			new ClosureCheckpoint(ans, closedMark, pass, termMap, homomorphism).write(checkpointFile);
+			lastCheckpoint=now;
+			if ( report!=null && !suppressOutput ) report.addLine("checkpoint written to "+checkpointFile);
+		} catch ( IOException e ) {
+			if ( report!=null ) report.addLine("checkpoint failed: "+e.getMessage());
+			else System.err.println("checkpoint failed: "+e.getMessage());
+		} // end try-catch IOException
+	} // end checkpoint()
+	
+	/**
+	 * Continues a closure from a checkpoint written by this or an earlier <code>Closer2</code> 
+	 * with the same algebra and generators, starting with the pass after the last one saved.
+	 * The terms and the homomorphism of the checkpoint, if any, replace the ones set here.
+	 * @param file A file written by <code>setCheckpointFile</code>
+	 * @return The closure, as <code>sgClose</code>
+	 */
+	public List<IntArray> resume(File file) throws IOException {
+		final ClosureCheckpoint cp = ClosureCheckpoint.read(file);
+		final List<IntArray> elems = cp.getElements();
+		if ( !elems.isEmpty() && !generators.isEmpty() && elems.get(0).universeSize()!=generators.get(0).universeSize() ) {
+			throw new IllegalArgumentException("The checkpoint is for a different algebra.");
+		} // end if ( the widths differ )
+		ans = new ArrayList<IntArray>(elems);
+		closedMark = cp.getClosedMark();
+		if ( cp.getTermMap()!=null ) termMap = cp.getTermMap();
+		if ( cp.getHomomorphism()!=null ) homomorphism = cp.getHomomorphism();
+		resumePass = cp.getPass();
+		pass = 0;
+		completed = false;
+		lastCheckpoint = System.currentTimeMillis();
+		if ( report!=null ) report.addLine("resuming from "+file+" at pass "+resumePass+", size "+ans.size());
+		return sgClose();
+	} // end resume(File)
+	
+	/**
+	 * Enlarges the closure by <code>newGens</code>, applying the operations only to argument 
+	 * tuples with at least one element not already closed, so this costs about the size of the 
+	 * increment rather than a new closure. This may be called after <code>sgClose</code> has 
+	 * returned, whether or not it completed, or before it has been called. New generators 
+	 * without a term get the variable <code>x_k</code>, where <code>k</code> is their index 
+	 * among the generators.
+	 * @param newGens The generators to add; ones already in the closure are ignored
+	 * @return The enlarged closure, as <code>sgClose</code>
+	 */
+	public List<IntArray> addGenerators(List<IntArray> newGens) {
+		if ( homomorphism!=null ) throw new IllegalStateException("The new generators would need images under the homomorphism.");
+		if ( generators==null ) generators = new ArrayList<IntArray>();
+		if ( ans==null ) ans = new ArrayList<IntArray>(generators);
+		final boolean started = pass>0 && rawList!=null;
+		if ( started && spillStore!=null && !spillFileOpen ) spill(ans);
+		final Set<IntArray> present = started?null:new HashSet<IntArray>(ans);
+		for ( IntArray g : newGens ) {
+			if ( started?indexOfElement(g.getArray())>=0:!present.add(g) ) continue;
+			ans.add(g);
+			if ( started && spillStore==null ) rawList.add(g.getArray());
+			generators.add(g);
+			if ( termMap!=null && !termMap.containsKey(g) ) termMap.put(g, new VariableImp("x_"+(generators.size()-1)));
+		} // end for ( IntArray g : newGens )
+		// closedMark is left alone: everything after it, old or new, is closed against the rest
+		if ( started ) currentMark=ans.size();
+		completed=false;
+		return sgClose();
+	} // end addGenerators(List<IntArray>)
+	
+	/**
+	 * Closes the subuniverse generated by a closed subuniverse and <code>newGens</code>, as 
+	 * <code>addGenerators</code>. The generators of this <code>Closer2</code> should be those 
+	 * of <code>closed</code>.
+	 * @param closed A subuniverse, closed under the operations
+	 * @param tM The terms of the elements of <code>closed</code>, or null
+	 * @param newGens The generators to add
+	 */
+	public List<IntArray> sgClose( List<IntArray> closed, Map<IntArray,Term> tM, List<IntArray> newGens ) {
+		ans=new ArrayList<IntArray>(closed);
+		closedMark=closed.size();
+		termMap=tM;
+		pass=0;
+		return addGenerators(newGens);
+	} // end sgClose(List<IntArray>, Map<IntArray,Term>, List<IntArray>)
+	
+	/**
+	 * Starts the statistics of the pass about to be done, of the given type
+	 */
+	private void startStatistics(int passType) {
+		int threads = 1;
+		if ( passType==DISTRIBUTED && workerAddresses!=null ) threads = workerAddresses.size();
+		else if ( passType!=SERIAL ) threads = numThreads==0?Runtime.getRuntime().availableProcessors():numThreads;
+		if ( passType==PARALLEL ) threads = Math.max(threads-(splitFeederThread?2:1),1); // the workers, without the collector and feeder
+		stats = new PassStatistics(pass, passType, closedMark, currentMark, threads, symbols);
+		resizesBefore = fingerprints==null?0:fingerprints.resizes();
+	} // end startStatistics(int)
+	
+	/**
+	 * Ends the statistics of the pass just done and keeps them
+	 */
+	private void finishStatistics() {
+		if ( fingerprints!=null && fingerprints.getList()==rawList ) {
+			stats.finish(ans.size(), fingerprints.size(), fingerprints.capacity(), fingerprints.resizes()-resizesBefore);
+		} else {
+			stats.finish(ans.size(), -1, -1, 0);
+		} // end if-else ( fingerprints!=null && fingerprints.getList()==rawList )
+		statistics.add(stats);
+	} // end finishStatistics()
+	
+	/**
+	 * The set of the elements, for the PARALLEL and EQUAL_WORKLOAD passes. The other passes
+	 * look elements up in <code>fingerprints()</code>, so this is only made when one of these
+	 * passes runs, and then catches up with the elements added since.
+	 */
+	private HashSet<IntArray> su() {
+		if ( su==null ) {
+			su = new HashSet<IntArray>(ans);
+			suSize = ans.size();
+		} // end if ( su==null )
+		while ( suSize<ans.size() ) su.add(ans.get(suSize++));
+		return su;
+	} // end su()
+	
+	/**
+	 * The index of rawList used by the serial passes to reject values already found
+	 * without making an IntArray of them. It catches up with rawList by itself.
+	 */
+	private FingerprintIndex fingerprints() {
+		if ( fingerprints==null || fingerprints.getList()!=rawList ) fingerprints = new FingerprintIndex(rawList);
+		return fingerprints;
+	} // end fingerprints()
+	
+	/**
+	 * The index of <code>v</code> among the elements, or -1, looked up in the spilled store if
+	 * there is one and otherwise in <code>fingerprints()</code>
+	 */
+	private int indexOfElement(int[] v) {
+		return spillStore!=null?spillStore.indexOf(v):fingerprints().indexOf(v);
+	} // end indexOfElement(int[])
+	
+	/**
+	 * Puts <code>elems</code> into a new <code>MappedTupleStore</code> in <code>spillDirectory</code>,
+	 * closing the file of the last one, and makes <code>ans</code> and <code>rawList</code> views of it
+	 */
+	private void spill(List<IntArray> elems) {
+		final MappedTupleStore store;
+		try {
+			store = MappedTupleStore.create(spillDirectory, power, elems.size(), algSize-1);
+		} catch ( IOException e ) {
+			throw new IllegalStateException("could not make the tuple file in "+spillDirectory+": "+e.getMessage(), e);
+		} // end try-catch IOException
+		for ( IntArray v : elems ) store.add(v.getArray());
+		closeSpillFile();
+		spillStore = store;
+		spillFileOpen = true;
+		ans = store.asList();
+		rawList = new AbstractList<int[]>() {
+			public int[] get(int index) { return store.getArray(index); }
+			public int size() { return store.size(); }
+		};
+	} // end spill(List<IntArray>)
+	
+	/**
+	 * Closes the file the elements are spilled to, if it is open. The elements can still be read,
+	 * but no more can be added to it. This is done when a closure completes.
+	 */
+	public void closeSpillFile() {
+		if ( !spillFileOpen ) return;
+		try {
+			spillStore.close();
+		} catch ( IOException e ) {
+			// the elements are all written, so this does not hurt the answer
+			if ( report!=null ) report.addLine("could not close the tuple file: "+e.getMessage());
+		} // end try-catch IOException
+		spillFileOpen = false;
+	} // end closeSpillFile()
+	
+	/**
+	 * The blocks and values constraint, compiled
+	 */
+	private ConstraintPlan constraintPlan() {
+		if ( constraint==null ) constraint = new ConstraintPlan(blocks, values);
+		return constraint;
+	} // end constraintPlan()
+	
+	/**
+	 * Determines which method should be used to calculate the upcoming pass.
+	 * FORK_JOIN and DISTRIBUTED passes are only done when closing in a power,
+	 * so asking for either of them when the algebra is not a power gives
+	 * PARALLEL passes instead. The passes of a closure whose elements are
+	 * spilled to a file are all SERIAL; see setSpillDirectory.
 	 */
 	public int currentPassType() {
-		if ( passDecisionProcedure!=PROGRAM_CHOICE ) return passDecisionProcedure;
+		if ( closingPower && spillStore!=null ) return SERIAL; // the other passes copy the elements
+		if ( passDecisionProcedure!=PROGRAM_CHOICE ) {
+			if ( !closingPower && (passDecisionProcedure==FORK_JOIN || passDecisionProcedure==DISTRIBUTED) ) return PARALLEL;
+			return passDecisionProcedure;
+		} // end if ( passDecisionProcedure!=PROGRAM_CHOICE )
+		if ( workerAddresses!=null && closingPower && imgOps==null && passWork()>=FORK_JOIN_MIN_PASS_WORK ) return DISTRIBUTED;
 		int nt = numThreads==0?Runtime.getRuntime().availableProcessors():numThreads;		
 		if ( nt==1 ) return SERIAL;
-		return PARALLEL;
+		if ( !closingPower || imgOps!=null ) return PARALLEL;
+		// small passes are not worth the threads
+		if ( passWork()<FORK_JOIN_MIN_PASS_WORK ) return SERIAL;
+		return FORK_JOIN;
 	} // end currentPassType()
 	
 	public boolean onePassSerial() {
@@ -318,15 +595,17 @@ public class Closer2 {
 		final boolean eltToFindNotNull = eltToFind!=null;
 		final boolean eltsToFindNotNull = eltsToFind!=null;
 		final boolean operationsNotNull = operations!=null;
+		final FingerprintIndex fingerprintIndex = fingerprints();
+		final long[] applications = stats.applications;
 		
 		for ( int i = 0; i < numOfOps; i++) {
+			stats.startOperation(i);
 			Operation f = algebra.operations().get(i);
 			final int arity = f.arity();
 			if (arity==0) continue;
 			int[] argIndices=new int[arity];
-			for ( int j = 0; j < arity; j++ ) argIndices[j]=0;
-			argIndices[arity-1]=closedMark;
-			ArrayIncrementor inc = SequenceGenerator.sequenceIncrementor(argIndices, currentMark-1, closedMark);
+			ArrayIncrementor inc = Closer.passIncrementor(argIndices, closedMark, currentMark, symmetric[i]);
+			final AbsorptionTable absorbing = absorption[i];
 			final int[][] arg = new int[arity][];
 			while (true) {
 				if (Thread.currentThread().isInterrupted()) {
@@ -336,16 +615,22 @@ public class Closer2 {
 					} // end if (reportNotNull)
 					return false;
 				} // end if (Thread.currentThread().isInterrupted())
+				if ( absorbing!=null && absorbing.absorbs(argIndices) ) {
+					if (!inc.increment()) break;
+					continue;
+				} // end if ( the value would be one of the arguments )
 				
 				for ( int j = 0; j < arity; j++ ) {
 					arg[j]=rawList.get(argIndices[j]);
 				} // end for 0 <= j < arity
 				
 				int[] vRaw = f.valueAt(arg);
-				IntArray v = new IntArray(vRaw);
+				final int k = fingerprintIndex.indexOf(vRaw);
+				final IntArray v = k<0?new IntArray(vRaw):ans.get(k);
+				applications[i]++;
 				if (reportNotNull) timing.incrementApps();
 				
-				if ( su.add(v) ) {
+				if ( k<0 ) {
 					ans.add(v);
 					rawList.add(vRaw);
 					if (reportNotNull) {
@@ -420,7 +705,7 @@ public class Closer2 {
 							return false;
 						} // end if ( homomorphism.get(v).intValue() != imgOps.get(i).intValueAt(args) )
 					} // end if ( imgOps!=null )
-				} // end if-else ( su.add(v) )
+				} // end if-else ( k<0 )
 				if (!inc.increment()) break;
 			} // end while (true)
 		} // end for 0 <= i < numOfOps
@@ -428,6 +713,7 @@ public class Closer2 {
 	} // end onePassSerial
 	
 	public boolean onePassParallel() {
+		su(); // the collector adds to it
 		final long passStartTime = System.currentTimeMillis();
 		final boolean reportNotNull = report!=null;
 		final boolean eltToFindNotNull = eltToFind!=null;
@@ -489,6 +775,9 @@ public class Closer2 {
 				return false;
 			} // end if (Thread.currentThread().isInterrupted())
 			
+			// How far ahead of the workers the feeder is
+			stats.sampleQueueDepth(feeder.size());
+			
 			// Feed the queue if necessary
 			if (!splitFeederThread) {
 				feederRunner.fillQueue();
@@ -515,6 +804,7 @@ public class Closer2 {
 					workersFinished[partResult.completed]=true;
 				} else if ( partResult!=null ) {
 					chunksProcessedThisPass++;
+					if ( partResult.opIndex>=0 ) stats.addOperation(partResult.opIndex, partResult.applications, partResult.nanos);
 					if ( partResult.failingEquation!=null && homomorphism!=null ) {
 						failingEquation=partResult.failingEquation;
 						if (reportNotNull) {
@@ -646,6 +936,7 @@ public class Closer2 {
 	} // end onePassParallel()
 
 	public boolean onePassEqualWorkload() {
+		su(); // the workers start from a copy of it
 		final boolean imgAlgNull = imgOps==null;
 		final boolean eltToFindNotNull = eltToFind!=null;
 		final boolean eltsToFindNotNull = eltsToFind!=null;
@@ -669,6 +960,7 @@ public class Closer2 {
 		class SGCloseTask implements Runnable {
 			private int index;
 			public boolean finished = false;
+			final WorkCounter counter = new WorkCounter(ops.size());
 			
 			public SGCloseTask( int newIndex ) {
 				index = newIndex;
@@ -676,11 +968,20 @@ public class Closer2 {
 			
 			@Override
 			public void run() {
+				try {
+					applyOperations();
+				} finally {
+					counter.startOperation(-1);
+				} // end try-finally
+			} // end run()
+			
+			private void applyOperations() {
 				for ( int i = 0; i < ops.size(); i++ ) {
 					Operation f = ops.get(i);
 					ReentrantLock opLock = opLocks.get(i);
 					int arity = f.arity();
 					if (arity==0) continue;
+					counter.startOperation(i);
 					int[] argIndices = new int[arity];
 					for ( int j = 0; j < arity-1; j++ ) argIndices[j]=0;
 					argIndices[arity-1]=index-numWorkers;
@@ -688,6 +989,7 @@ public class Closer2 {
 					final int[][] arg = new int[arity][];
 					while (inc.increment()) {
 						if (Thread.currentThread().isInterrupted()) return;
+						counter.applications[i]++;
 						rawListLock.readLock().lock();
 						for ( int j = 0; j < arity; j++ ) arg[j] = rawList.get(argIndices[j]);
 						rawListLock.readLock().unlock();
@@ -794,7 +1096,7 @@ public class Closer2 {
 					} // end while (inc.increment())
 				} // end for ( Operation f : ops )	
 				finished=true;
-			} // end run()
+			} // end applyOperations()
 		} // end class SGCloseTask
 
 		SGCloseTask[] work = new SGCloseTask[numWorkers];
@@ -816,6 +1118,14 @@ public class Closer2 {
 			} // end try-catch InterruptedException
 		} // end for 0 <= i < numWorkers
 		
+		for ( int i = 0; i < numWorkers; i++ ) {
+			try {
+				workers[i].join(); // an interrupted worker may still be stopping
+			} catch ( InterruptedException e ) {
+			} // end try-catch InterruptedException
+			work[i].counter.addTo(stats);
+		} // end for 0 <= i < numWorkers
+		
 		su.addAll(suTemp);
 		if (termMap!=null) termMap.putAll(termMapTemp);
 		if (termMapForOperations!=null) termMapForOperations.putAll(termMapForOperationsTemp);
@@ -831,6 +1141,8 @@ public class Closer2 {
 	private void initializeClosurePower() {
 		if ( report!=null ) report.addStartLine("subpower closing...");
 		BigProductAlgebra bpa = (BigProductAlgebra)algebra;
+		closingPower = true;
+		closeWorkers(); // they have the elements of an earlier closure
 		algSize = bpa.factors().get(0).cardinality();
 		ops = bpa.factors().get(0).operations();
 		numOfOps = ops.size();
@@ -856,9 +1168,9 @@ public class Closer2 {
 				imgOps[i]=imageAlgebra.getOperation(symbols[i]);
 				Operation op2 = imageAlgebra.getOperation(symbols[i]);
 				if ( op2 instanceof OperationWithDefaultValue ) {
-					opTables[i] = ((OperationWithDefaultValue)op2).getTotalTable();
+					imgOpTables[i] = ((OperationWithDefaultValue)op2).getTotalTable();
 				} else {
-					opTables[i]=op2.getTable();
+					imgOpTables[i]=op2.getTable();
 				} // end if-else ( op2 instanceof OperationWithDefaultValue )
 			} // end if (imgOps!=null)
 		} // end for 0 <= i < numOfOps
@@ -866,17 +1178,23 @@ public class Closer2 {
 		operationsFound=0;
 		power=bpa.getNumberOfFactors();
 		if ( ans==null || ans.size()==0 ) ans=new ArrayList<IntArray>(generators);
-		rawList = new ArrayList<int[]>();
-		for ( IntArray arr : ans ) rawList.add(arr.getArray());
-		su = new HashSet<IntArray>(ans);
+		if ( spillDirectory!=null ) {
+			spill(ans);
+		} else {
+			closeSpillFile();
+			spillStore = null;
+			rawList = new ArrayList<int[]>();
+			for ( IntArray arr : ans ) rawList.add(arr.getArray());
+		} // end if-else ( spillDirectory!=null )
+		su = null;
 		for ( Operation op : bpa.operations() ) {
 			if ( op.arity()==0 ) {
 				IntArray ia = (IntArray)op.valueAt(new ArrayList<IntArray>());
-				if ( su.add(ia) ) {
+				if ( indexOfElement(ia.getArray())<0 ) {
 					ans.add(ia);
-					rawList.add(ia.getArray());
+					if ( spillStore==null ) rawList.add(ia.getArray());
 					if (termMap!=null) termMap.put(ia, NonVariableTerm.makeConstantTerm(op.symbol()));
-				} // end if ( su.add(ia) )
+				} // end if ( indexOfElement(ia.getArray())<0 )
 			} // end if ( op.arity()==0 )
 		} // end for ( Operation op : ops )
 /*		final List<IntArray> constants = algebra.getConstants();
@@ -888,8 +1206,12 @@ public class Closer2 {
 			} // end if (su.add(arr))
 		} // end for ( IntArray arr : constants ) /**/
 		currentMark = ans.size();
-		pass=0;
+		pass=resumePass;
+		resumePass=0; // only the closure started by resume continues its numbering
 		timing=(report!=null)?new CloserTiming(algebra,report):null;		
+		if ( blocks!=null ) constraintPlan(); // before any worker threads use it
+		symmetric = Closer.symmetricOperations(ops, bpa.factors().subList(0, 1), imgOps!=null?imageAlgebra:null);
+		absorption = AbsorptionTable.tables(ops, bpa.factors().subList(0, 1), imgOps!=null?imageAlgebra:null);
 	} // end initializeClosurePower()
 	
 	public List<IntArray> sgClosePower() {
@@ -904,14 +1226,25 @@ public class Closer2 {
 			} // end if (report!=null)
 			pass++;
 			boolean result = false;
-			switch (currentPassType()) {
+			final int passType = currentPassType();
+			startStatistics(passType);
+			switch (passType) {
 				case SERIAL: result = onePassPowerSerial(); break;
 				case PARALLEL: result = onePassPowerParallel(); break;
 				case EQUAL_WORKLOAD: result = onePassPowerEqualWorkload(); break;
-			} // end switch (currentPassType())
-			if (!result) return completed?ans:null;
+				case FORK_JOIN: result = onePassPowerForkJoin(); break;
+				case DISTRIBUTED: result = onePassPowerDistributed(); break;
+			} // end switch (passType)
+			finishStatistics();
+			if (!result) {
+				closeWorkers();
+				if (completed) closeSpillFile();
+				return completed?ans:null;
+			} // end if (!result)
 			closedMark=currentMark;
 			currentMark=ans.size();
+			checkpoint();
+			if ( blocks!=null ) constraintPlan().reorder();
 			if (imageAlgebra==null && algebra.cardinality()>0 && currentMark>=algebra.cardinality() ) { 
 				completed=true; 
 				break; 
@@ -923,6 +1256,10 @@ public class Closer2 {
 			report.addEndingLine("done closing, size = "+ans.size());
 		} // end if ((currentMark>=closedMark||completed) && report!=null)
 		if ( closedMark>=currentMark ) completed = true;
+		if (completed) {
+			closeWorkers();
+			closeSpillFile();
+		} // end if (completed)
 		return ans;
 	} // end sgClosePower()
 	
@@ -934,15 +1271,20 @@ public class Closer2 {
 		final boolean operationsNotNull = operations!=null;
 		final boolean blocksNotNull = blocks!=null;
 		final boolean valuesNotNull = values!=null;
+		final MappedTupleStore store = spillStore; // the arguments are read from it if it is set
+		final FingerprintIndex fingerprintIndex = store==null?fingerprints():null;
+		final long[] applications = stats.applications;
 		
 		for ( int i = 0; i < numOfOps; i++ ) {
+			stats.startOperation(i);
 			final int arity = arities[i];
 			if (arity==0) continue;
 			int[] opTable = opTables[i];
 			final int[] argIndices = new int[arity];
-			for ( int r = 0; r < arity-1; r++ ) argIndices[r]=0;
-			argIndices[arity-1]=closedMark;
-			ArrayIncrementor inc = SequenceGenerator.sequenceIncrementor(argIndices, currentMark-1, closedMark);
+			final int[][] argTuples = new int[arity][];
+			int[] vRaw = new int[power];
+			ArrayIncrementor inc = Closer.passIncrementor(argIndices, closedMark, currentMark, symmetric[i]);
+			final AbsorptionTable absorbing = absorption[i];
 			
 			while (true) {
 				if (Thread.currentThread().isInterrupted()) {
@@ -952,124 +1294,40 @@ public class Closer2 {
 					}
 					return false;
 				} // end if (Thread.currentThread().isInterrupted())
+				if ( absorbing!=null && absorbing.absorbs(argIndices) ) {
+					if (!inc.increment()) break;
+					continue;
+				} // end if ( the value would be one of the arguments )
 				
-				final int[] vRaw = new int[power];
-				if (opTable!=null) {
-					for ( int j = 0; j < power; j++ ) {
-						int factor = algSize;
-						int index = rawList.get(argIndices[0])[j];
-						for ( int r = 1; r < arity; r++ ) {
-							index+=factor*rawList.get(argIndices[r])[j];
-							factor=factor*algSize;
-						} // end for 1 <= r < arity
-						vRaw[j]=opTable[index];
-					} // end for 0 <= j < power
+				if ( opTable!=null && store!=null ) {
+					store.evaluate(opTable, algSize, argIndices, vRaw);
+				} else if (opTable!=null) {
+					for ( int r = 0; r < arity; r++ ) argTuples[r]=rawList.get(argIndices[r]);
+					Horner.applyCoordinatewise(opTable, algSize, argTuples, vRaw, power);
 				} else {
 					final Operation f = ops.get(i);
 					for ( int j = 0; j < power; j++ ) {
 						final int[] arg = new int[f.arity()];
-						for ( int r = 0; r < arity; r++ ) arg[r]=rawList.get(argIndices[r])[j];
+						for ( int r = 0; r < arity; r++ ) arg[r]=store!=null?store.get(argIndices[r], j):rawList.get(argIndices[r])[j];
 						vRaw[j]=f.intValueAt(arg);
 					} // end for 0 <= j < power
 				} // end if-else (opTable!=null)
-				IntArray v = new IntArray(vRaw);
+				// vRaw is only kept, and a new one made, if the value is new
+				final int k = store!=null?store.indexOf(vRaw):fingerprintIndex.indexOf(vRaw);
+				applications[i]++;
 				if (reportNotNull) timing.incrementApps();
-				if (su.add(v)) {
-					ans.add(v);
-					rawList.add(vRaw);
-					if (reportNotNull) {
-						timing.incrementNextPassSize();
-						report.setSize(ans.size());
-					} // end if (reportNotNull)
-					if (Thread.currentThread().isInterrupted()) return false;
-					if (termMap!=null) {
-						List<Term> children = new ArrayList<Term>(arity);
-						for ( int r = 0; r < arity; r++ ) children.add(termMap.get(ans.get(argIndices[r])));
-						termMap.put(v, new NonVariableTerm(symbols[i],children));
-						if (operationsNotNull) {
-							Term term = termMap.get(v);
-							List<Variable> vars = new ArrayList<Variable>(generators.size());
-							for ( IntArray ia : generators ) vars.add((Variable)termMap.get(ia));
-							Operation termOp = term.interpretation(rootAlgebra, vars, true);
-							for ( Operation op : operations ) {
-								if ( Operations.equalValues(termOp, op) ) {
-									termMapForOperations.put(op, term);
-									operationsFound++;
-									if ( operationsFound==operations.size() ) {
-										completed=true;
-										return false;
-									} // end if ( operationsFound==operations.size() )
-								} // end if ( Operations.equalValues(termOp, op) )
-							} // end for ( Operation op : operations )
-						} // end if (operationsNotNull)
-					} // end if (termMap!=null)
-					if ( eltToFindNotNull && v.equals(eltToFind) ) {
-						if (reportNotNull) {
-							report.setSize(ans.size());
-							report.addEndingLine("closing done, found "+eltToFind+", at "+ans.size());
-						} // end if (reportNotNull)
-						completed=true;
-						return false;
-					} // end if ( eltToFindNotNull && v.equals(eltToFind) )
-					if ( eltsToFindNotNull && MINUS_ONE.equals(indicesMapOfFoundElts.get(v)) ) {
-						final int index = ans.size()-1;
-						indicesMapOfFoundElts.put(v, index);
-						specialEltsFound++;
-						if (reportNotNull) report.addLine("found "+v+", at "+index);
-						if (specialEltsFound==eltsToFind.size()) {
-							if (reportNotNull) report.addEndingLine("closing done, found all "+specialEltsFound+" elems");
-							allEltsFound=true;
-							completed=true;
-							return false;
-						} // end if (specialEltsFound==eltsToFind.size())
-					} // end if ( eltsToFindNotNull && MINUS_ONE.equals(indicesMapOfFoundElts.get(v)) )
-					if (blocksNotNull) {
-						boolean found = false;
-						if (valuesNotNull) {
-							if (v.satisfiesConstraint(blocks, values)) found=true;
-						} else {
-							if (v.satisfiesConstraint(blocks)) found=true;
-						} // end if-else (valuesNotNull)
-						if (found) {
-							eltToFind=v;
-							if (reportNotNull) {
-								report.setSize(ans.size());
-								report.addEndingLine("closing done, found "+eltToFind+", at "+ans.size());
-							} // end if (reportNotNull)
-							completed=true;
-							return false;
-						} // end if (found)
-					} // end if (blocksNotNull)
-					
-					if (imgOps==null) {
-						final int size = ans.size();
-						if ( imgAlgNull && algebra.cardinality()>0 && size==algebra.cardinality() ) {
-							if (reportNotNull) {
-								report.setSize(ans.size());
-								report.addEndingLine("found all "+size+" elements");
-							} // end if (reportNotNull)
-							completed=true;
-							return false;
-						} // end if (imgAlgNull && algebra.cardinality()>0 && size==algebra.cardinality() )
-					} else {
-						final int[] args = new int[arity];
-						for ( int t = 0; t < arity; t++ ) args[t]=homomorphism.get(ans.get(argIndices[t]));
-						homomorphism.put(v, imgOps[i].intValueAt(args));
-					} // end if-else (imgOps==null)
-					if (Thread.currentThread().isInterrupted()) {
-						if (reportNotNull) {
-							report.setSize(ans.size());
-							report.addEndingLine("cancelled...");
-						} // end if (reportNotNull)
-						return false;
-					} // end if (Thread.currentThread().isInterrupted())					
+				if ( k<0 ) {
+					final IntArray v = new IntArray(vRaw);
+					if (!addPowerElement(v, vRaw, i, argIndices)) return false;
+					vRaw = new int[power];
 				} else {
+					final IntArray v = ans.get(k);
 					if (!imgAlgNull) {
 						final int[] args = new int[arity];
 						for ( int t = 0; t < arity; t++ ) args[t] = homomorphism.get(ans.get(argIndices[t]));
 						if ( homomorphism.get(v).intValue() != imgOps[i].intValueAt(args) ) {
 							List<Term> children = new ArrayList<Term>(arity);
-							for ( int r = 0; r < arity; r++ ) children.add(termMap.get(argIndices[r]));
+							for ( int r = 0; r < arity; r++ ) children.add(termMap.get(ans.get(argIndices[r])));
 							failingEquation = new Equation(termMap.get(v), new NonVariableTerm(symbols[i],children));
 							if (reportNotNull) {
 								report.setSize(ans.size());
@@ -1079,18 +1337,355 @@ public class Closer2 {
 							return false;
 						} // end if ( homomorphism.get(v).intValue() != imgOps[i].intValueAt(args) )
 					} // end if (imgAlgNull)
-				} // end if-else (su.add(v))
+				} // end if-else ( k<0 )
 				if (!inc.increment()) break;
 			} // end while (true)
 		} // end for 0 <= i < numOfOps
 		return true;
 	} // end onePassPowerSerial()
 	
+	/**
+	 * Adds a new element found in a pass on a power algebra, making its term and checking whether
+	 * it is one we are looking for.
+	 * @param i the index of the operation which produced it
+	 * @param argIndices the indices of the arguments it was produced from
+	 * @return Whether or not to continue closing
+	 */
+	private boolean addPowerElement(IntArray v, int[] vRaw, int i, int[] argIndices) {
+		final boolean reportNotNull = report!=null;
+		final boolean imgAlgNull = imgOps==null;
+		final boolean eltToFindNotNull = eltToFind!=null;
+		final boolean eltsToFindNotNull = eltsToFind!=null;
+		final boolean operationsNotNull = operations!=null;
+		final boolean blocksNotNull = blocks!=null;
+		final boolean valuesNotNull = values!=null;
+		final int arity = argIndices.length;
+		ans.add(v);
+		if ( spillStore==null ) rawList.add(vRaw); // otherwise ans and rawList are both views of it
+		if (reportNotNull) {
+			timing.incrementNextPassSize();
+			report.setSize(ans.size());
+		} // end if (reportNotNull)
+		if (Thread.currentThread().isInterrupted()) return false;
+		if (termMap!=null) {
+			List<Term> children = new ArrayList<Term>(arity);
+			for ( int r = 0; r < arity; r++ ) children.add(termMap.get(ans.get(argIndices[r])));
+			termMap.put(v, new NonVariableTerm(symbols[i],children));
+			if (operationsNotNull) {
+				Term term = termMap.get(v);
+				List<Variable> vars = new ArrayList<Variable>(generators.size());
+				for ( IntArray ia : generators ) vars.add((Variable)termMap.get(ia));
+				Operation termOp = term.interpretation(rootAlgebra, vars, true);
+				for ( Operation op : operations ) {
+					if ( Operations.equalValues(termOp, op) ) {
+						termMapForOperations.put(op, term);
+						operationsFound++;
+						if ( operationsFound==operations.size() ) {
+							completed=true;
+							return false;
+						} // end if ( operationsFound==operations.size() )
+					} // end if ( Operations.equalValues(termOp, op) )
+				} // end for ( Operation op : operations )
+			} // end if (operationsNotNull)
+		} // end if (termMap!=null)
+		if ( eltToFindNotNull && v.equals(eltToFind) ) {
+			if (reportNotNull) {
+				report.setSize(ans.size());
+				report.addEndingLine("closing done, found "+eltToFind+", at "+ans.size());
+			} // end if (reportNotNull)
+			completed=true;
+			return false;
+		} // end if ( eltToFindNotNull && v.equals(eltToFind) )
+		if ( eltsToFindNotNull && MINUS_ONE.equals(indicesMapOfFoundElts.get(v)) ) {
+			final int index = ans.size()-1;
+			indicesMapOfFoundElts.put(v, index);
+			specialEltsFound++;
+			if (reportNotNull) report.addLine("found "+v+", at "+index);
+			if (specialEltsFound==eltsToFind.size()) {
+				if (reportNotNull) report.addEndingLine("closing done, found all "+specialEltsFound+" elems");
+				allEltsFound=true;
+				completed=true;
+				return false;
+			} // end if (specialEltsFound==eltsToFind.size())
+		} // end if ( eltsToFindNotNull && MINUS_ONE.equals(indicesMapOfFoundElts.get(v)) )
+		if (blocksNotNull) {
+			if (constraintPlan().isSatisfiedBy(v.getArray())) {
+				eltToFind=v;
+				if (reportNotNull) {
+					report.setSize(ans.size());
+					report.addEndingLine("closing done, found "+eltToFind+", at "+ans.size());
+				} // end if (reportNotNull)
+				completed=true;
+				return false;
+			} // end if (found)
+		} // end if (blocksNotNull)
+		
+		if (imgOps==null) {
+			final int size = ans.size();
+			if ( imgAlgNull && algebra.cardinality()>0 && size==algebra.cardinality() ) {
+				if (reportNotNull) {
+					report.setSize(ans.size());
+					report.addEndingLine("found all "+size+" elements");
+				} // end if (reportNotNull)
+				completed=true;
+				return false;
+			} // end if (imgAlgNull && algebra.cardinality()>0 && size==algebra.cardinality() )
+		} else {
+			final int[] args = new int[arity];
+			for ( int t = 0; t < arity; t++ ) args[t]=homomorphism.get(ans.get(argIndices[t]));
+			homomorphism.put(v, imgOps[i].intValueAt(args));
+		} // end if-else (imgOps==null)
+		if (Thread.currentThread().isInterrupted()) {
+			if (reportNotNull) {
+				report.setSize(ans.size());
+				report.addEndingLine("cancelled...");
+			} // end if (reportNotNull)
+			return false;
+		} // end if (Thread.currentThread().isInterrupted())					
+		return true;
+	} // end addPowerElement(IntArray, int[], int, int[])
+	
+	/**
+	 * Performs one closure pass on a power algebra with a <code>ForkJoinPool</code>.
+	 * For each operation the argument tuples of the pass are numbered by a <code>PassRange</code>,
+	 * and the range is halved recursively until the pieces are small compared to the whole pass;
+	 * idle threads steal the pieces.
+	 * The new elements are collected with the least (operation, arguments) producing them
+	 * and added in that order, so the result is the same as that of <code>onePassPowerSerial</code>.
+	 * When <code>eltToFind</code> turns up, only the pieces starting after the least way of
+	 * producing it are cut short, so every element the serial pass adds before it is still found.
+	 * Falls back to <code>onePassPowerSerial</code> when looking for a homomorphism or when there
+	 * are too many tuples to number.
+	 * @return Whether or not to continue closing
+	 */
+	public boolean onePassPowerForkJoin() {
+		if ( imgOps!=null ) return onePassPowerSerial();
+		final boolean reportNotNull = report!=null;
+		final int nt = numThreads==0?Runtime.getRuntime().availableProcessors():numThreads;
+		final PassRange[] ranges = new PassRange[numOfOps];
+		for ( int i = 0; i < numOfOps; i++ ) {
+			if ( arities[i]==0 ) continue;
+			ranges[i] = PassRange.make(arities[i], closedMark, currentMark, symmetric[i]);
+			if ( ranges[i]==null ) return onePassPowerSerial();
+		} // end for 0 <= i < numOfOps
+		final double passWork = passWork();
+		final long taskWork = (long)Math.max(FORK_JOIN_MIN_TASK_WORK, passWork/(nt*FORK_JOIN_SPLITS_PER_THREAD));
+		// number the tuples of all the operations one after another, in the serial order
+		final long[] offsets = new long[numOfOps];
+		long total = 0;
+		boolean canStop = true;
+		for ( int i = 0; i < numOfOps; i++ ) {
+			offsets[i]=total;
+			if ( ranges[i]!=null ) total+=ranges[i].size();
+			if ( total<0 ) canStop=false;
+		} // end for 0 <= i < numOfOps
+		final ConcurrentHashMap<IntArray,int[]> found = new ConcurrentHashMap<IntArray,int[]>();
+		final int[] eltToFindRaw = eltToFind==null||!canStop?null:eltToFind.getArray();
+		// the number of the least tuple found giving eltToFind; the tuples after it are not needed
+		final AtomicLong stopAt = new AtomicLong(Long.MAX_VALUE);
+		final FingerprintIndex fingerprintIndex = fingerprints();
+		fingerprintIndex.update();
+		
+		/**
+		 * Applies one operation to the argument tuples numbered lo to hi-1 by its PassRange
+		 */
+		class PowerPassTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			private final int opIndex;
+			private final long lo;
+			private final long hi;
+			
+			PowerPassTask(int newOpIndex, long newLo, long newHi) {
+				opIndex=newOpIndex;
+				lo=newLo;
+				hi=newHi;
+			} // end constructor(int, long, long)
+			
+			@Override
+			protected void compute() {
+				if ( lo>=hi || offsets[opIndex]+lo>stopAt.get() ) return;
+				if ( hi-lo>taskWork ) {
+					final long mid = lo+(hi-lo)/2;
+					invokeAll(new PowerPassTask(opIndex, lo, mid), new PowerPassTask(opIndex, mid, hi));
+					return;
+				} // end if ( hi-lo>taskWork )
+				final int arity = arities[opIndex];
+				final int[] opTable = opTables[opIndex];
+				final Operation f = opTable==null?ops.get(opIndex):null;
+				final AbsorptionTable absorbing = absorption[opIndex];
+				final PassRange range = ranges[opIndex];
+				final int[] arg = new int[arity];
+				final int[] argIndices = new int[arity];
+				final int[][] args = new int[arity][];
+				int[] vRaw = new int[power];
+				long apps = 0;
+				final long leafStart = System.nanoTime();
+				range.decode(lo, argIndices);
+				for ( long t = lo; t < hi; t++, range.next(argIndices) ) {
+					if ( (t & 0xfff)==0 && offsets[opIndex]+t>stopAt.get() ) break;
+					if ( absorbing!=null && absorbing.absorbs(argIndices) ) continue;
+					for ( int r = 0; r < arity; r++ ) args[r]=rawList.get(argIndices[r]);
+					apps++;
+					if ( opTable!=null ) {
+						Horner.applyCoordinatewise(opTable, algSize, args, vRaw, power);
+					} else {
+						for ( int j = 0; j < power; j++ ) {
+							for ( int r = 0; r < arity; r++ ) arg[r]=args[r][j];
+							vRaw[j]=f.intValueAt(arg);
+						} // end for 0 <= j < power
+					} // end if-else ( opTable!=null )
+					if ( fingerprintIndex.indexOf(vRaw)>=0 ) continue;
+					final IntArray v = new IntArray(vRaw);
+					final int[] prov = new int[arity+1];
+					prov[0]=opIndex;
+					System.arraycopy(argIndices, 0, prov, 1, arity);
+					// keep the least way of producing v, which is the one the serial pass finds first
+					if ( found.merge(v, prov, (p1, p2) -> compareProvenance(p1, p2)<=0?p1:p2)==prov ) vRaw = new int[power];
+					if ( eltToFindRaw!=null && IntArray.equalIntArrays(v.getArray(), eltToFindRaw) ) {
+						final long key = offsets[opIndex]+t;
+						stopAt.accumulateAndGet(key, Math::min);
+					} // end if ( eltToFindRaw!=null && IntArray.equalIntArrays(v.getArray(), eltToFindRaw) )
+				} // end for lo <= t < hi
+				stats.addOperation(opIndex, apps, System.nanoTime()-leafStart);
+			} // end compute()
+		} // end class PowerPassTask
+		
+		final List<PowerPassTask> tasks = new ArrayList<PowerPassTask>();
+		for ( int i = 0; i < numOfOps; i++ ) {
+			if ( arities[i]==0 ) continue;
+			tasks.add(new PowerPassTask(i, 0, ranges[i].size()));
+		} // end for 0 <= i < numOfOps
+		final ForkJoinPool pool = new ForkJoinPool(nt);
+		try {
+			pool.submit(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				} // end compute()
+			}).get();
+		} catch ( InterruptedException e ) {
+			stopAt.set(-1);
+			if (reportNotNull) {
+				report.setSize(ans.size());
+				report.addEndingLine("cancelled...");
+			} // end if (reportNotNull)
+			Thread.currentThread().interrupt();
+			return false;
+		} catch ( ExecutionException e ) {
+			throw new RuntimeException("fork/join pass failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		} // end try-catch-finally
+		
+		// add the new elements in the order the serial pass would find them
+		final List<Map.Entry<IntArray,int[]>> newElts = new ArrayList<Map.Entry<IntArray,int[]>>(found.entrySet());
+		Collections.sort(newElts, new Comparator<Map.Entry<IntArray,int[]>>() {
+			public int compare(Map.Entry<IntArray,int[]> e1, Map.Entry<IntArray,int[]> e2) {
+				return compareProvenance(e1.getValue(), e2.getValue());
+			} // end compare(Map.Entry<IntArray,int[]>, Map.Entry<IntArray,int[]>)
+		});
+		if (reportNotNull) timing.incrementApps();
+		for ( Map.Entry<IntArray,int[]> e : newElts ) {
+			final IntArray v = e.getKey();
+			final int[] prov = e.getValue();
+			if ( !addPowerElement(v, v.getArray(), prov[0], Arrays.copyOfRange(prov, 1, prov.length)) ) return false;
+		} // end for ( Map.Entry<IntArray,int[]> e : newElts )
+		return true;
+	} // end onePassPowerForkJoin()
+	
+	/**
+	 * Performs one closure pass on a power algebra with the <code>ClosureWorker</code>'s, each
+	 * taking an equal piece of the numbered argument tuples of each operation. They
+	 * are sent the elements they do not have yet, and the new elements they send back are
+	 * added in the order the serial pass would find them. A homomorphism or an operation
+	 * without a table is done with <code>onePassPowerForkJoin</code> instead.
+	 * @return Whether or not to continue closing
+	 */
+	public boolean onePassPowerDistributed() {
+		if ( imgOps!=null || workerAddresses==null || workerAddresses.isEmpty() ) return onePassPowerForkJoin();
+		for ( int i = 0; i < numOfOps; i++ ) {
+			if ( opTables[i]==null ) return onePassPowerForkJoin();
+			if ( arities[i]>0 && PassRange.make(arities[i], closedMark, currentMark, symmetric[i])==null ) return onePassPowerSerial();
+		} // end for 0 <= i < numOfOps
+		final int parts = workerAddresses.size();
+		final Map<IntArray,int[]> found = new HashMap<IntArray,int[]>();
+		try {
+			if ( workerConnections==null ) {
+				workerConnections = new ClosureWorker.Connection[parts];
+				for ( int k = 0; k < parts; k++ ) {
+					workerConnections[k] = new ClosureWorker.Connection(workerAddresses.get(k));
+					workerConnections[k].sendSetup(algSize, power, opTables, arities, symmetric);
+				} // end for 0 <= k < parts
+				sentToWorkers=0;
+			} // end if ( workerConnections==null )
+			// the workers all work at once; we only wait when reading their answers
+			for ( int k = 0; k < parts; k++ ) workerConnections[k].sendPass(rawList, sentToWorkers, algSize, closedMark, currentMark, k, parts);
+			sentToWorkers=currentMark;
+			for ( int k = 0; k < parts; k++ ) workerConnections[k].readPass(found, power, algSize, arities, stats);
+		} catch ( IOException e ) {
+			closeWorkers();
+			throw new RuntimeException("distributed pass failed", e);
+		} // end try-catch IOException
+		
+		// add the new elements in the order the serial pass would find them
+		final List<Map.Entry<IntArray,int[]>> newElts = new ArrayList<Map.Entry<IntArray,int[]>>(found.entrySet());
+		Collections.sort(newElts, new Comparator<Map.Entry<IntArray,int[]>>() {
+			public int compare(Map.Entry<IntArray,int[]> e1, Map.Entry<IntArray,int[]> e2) {
+				return compareProvenance(e1.getValue(), e2.getValue());
+			} // end compare(Map.Entry<IntArray,int[]>, Map.Entry<IntArray,int[]>)
+		});
+		if (report!=null) timing.incrementApps();
+		for ( Map.Entry<IntArray,int[]> e : newElts ) {
+			final IntArray v = e.getKey();
+			final int[] prov = e.getValue();
+			if ( fingerprints().indexOf(v.getArray())>=0 ) continue;
+			if ( !addPowerElement(v, v.getArray(), prov[0], Arrays.copyOfRange(prov, 1, prov.length)) ) return false;
+		} // end for ( Map.Entry<IntArray,int[]> e : newElts )
+		return true;
+	} // end onePassPowerDistributed()
+	
+	/**
+	 * Closes the connections to the <code>ClosureWorker</code>'s, if they are open. This is done
+	 * when a closure finishes; a closure stopped after a pass keeps them for the next one.
+	 */
+	public void closeWorkers() {
+		if ( workerConnections==null ) return;
+		for ( ClosureWorker.Connection c : workerConnections ) if ( c!=null ) c.close();
+		workerConnections=null;
+	} // end closeWorkers()
+	
+	/**
+	 * Compares two ways, (operation index, argument indices...), of producing an element
+	 * in the order the serial pass tries them.
+	 */
+	static int compareProvenance(int[] p1, int[] p2) {
+		final int n = Math.min(p1.length, p2.length);
+		for ( int i = 0; i < n; i++ ) {
+			if ( p1[i]!=p2[i] ) return p1[i]<p2[i]?-1:1;
+		} // end for 0 <= i < n
+		return p1.length-p2.length;
+	} // end compareProvenance(int[], int[])
+	
+	/**
+	 * The number of argument tuples the upcoming pass has to try
+	 */
+	public double passWork() {
+		double work = 0;
+		if ( arities==null ) return work;
+		for ( int i = 0; i < arities.length; i++ ) {
+			if ( arities[i]==0 ) continue;
+			work += Math.pow(currentMark, arities[i])-Math.pow(closedMark, arities[i]);
+		} // end for 0 <= i < arities.length
+		return work;
+	} // end passWork()
+	
 	/**
 	 * Performs one closure pass in parallel on a power algebra.
 	 * @return Whether or not to continue closing
 	 */
 	public boolean onePassPowerParallel() {
+		su(); // the collector adds to it
 		final long passStartTime = System.currentTimeMillis();
 		final int numWorkers = Math.max((numThreads==0?Runtime.getRuntime().availableProcessors():numThreads)-(splitFeederThread?2:1),1);
 		final boolean reportNotNull = report!=null;
@@ -1150,6 +1745,9 @@ public class Closer2 {
 				return false;
 			} // end if (Thread.currentThread().isInterrupted())
 			
+			// How far ahead of the workers the feeder is
+			stats.sampleQueueDepth(feeder.size());
+			
 			// Feed the queue if necessary
 			if (!splitFeederThread) {
 				feederRunner.fillQueue();
@@ -1177,6 +1775,7 @@ public class Closer2 {
 					workersFinished[partResult.completed]=true;
 				} else if ( partResult!=null ){
 					chunksProcessedThisPass++;
+					if ( partResult.opIndex>=0 ) stats.addOperation(partResult.opIndex, partResult.applications, partResult.nanos);
 					if ( partResult.failingEquation!=null && homomorphism!=null ) {
 						failingEquation = partResult.failingEquation;
 						if (reportNotNull) {
@@ -1235,13 +1834,7 @@ public class Closer2 {
 								} // end if ( specialEltsFound==eltsToFind.size() )
 							} // end if ( eltsToFindNotNull && MINUS_ONE.equals(indicesMapOfFoundElts.get(v)) )
 							if (blocksNotNull) {
-								boolean found=false;
-								if (valuesNotNull) {
-									if (v.satisfiesConstraint(blocks, values)) found=true;
-								} else {
-									if (v.satisfiesConstraint(blocks)) found=true;
-								} // end if-else (valuesNotNull)
-								if (found) {
+								if (constraintPlan().isSatisfiedBy(v.getArray())) {
 									eltToFind=v;
 									if (reportNotNull) {
 										report.setSize(ans.size());
@@ -1326,6 +1919,7 @@ public class Closer2 {
 	} // end onePassPowerParallel()
 	
 	public boolean onePassPowerEqualWorkload() {
+		su(); // the workers start from a copy of it
 		final boolean imgAlgNull = imgOps==null;
 		final boolean eltToFindNotNull = eltToFind!=null;
 		final boolean eltsToFindNotNull = eltsToFind!=null;
@@ -1349,15 +1943,25 @@ public class Closer2 {
 		class SGClosePowerTask implements Runnable {
 			private int index;
 			public boolean finished = false;
+			final WorkCounter counter = new WorkCounter(ops.size());
 			
 			public SGClosePowerTask(int newIndex) {
 				index=newIndex;
 			} // end constructor(int)
 			
 			public void run() {
+				try {
+					applyOperations();
+				} finally {
+					counter.startOperation(-1);
+				} // end try-finally
+			} // end run()
+			
+			private void applyOperations() {
 				for ( int i = 0; i < numOfOps; i++ ) {
 					final int arity=arities[i];
 					if (arity==0) continue;
+					counter.startOperation(i);
 					int[] opTable = opTables[i];
 					final int[] argIndices = new int[arity];
 					for ( int j = 0; j < arity-1; j++ ) argIndices[j]=0;
@@ -1366,19 +1970,14 @@ public class Closer2 {
 					
 					while (inc.increment()) {
 						if (Thread.currentThread().isInterrupted()) return;
+						counter.applications[i]++;
 						int[] vRaw = new int[power];
 						if (opTable!=null) {
-							for ( int j = 0; j < power; j++ ) {
-								int factor=algSize;
-								rawListLock.readLock().lock();
-								int index = rawList.get(argIndices[0])[j];
-								for ( int r = 1; r < arity; r++ ) {
-									index+=factor*rawList.get(argIndices[r])[j];
-									factor=factor*algSize;
-								} // end for 1 <= r < arity 
-								rawListLock.readLock().unlock();
-								vRaw[j]=opTable[index];
-							} // end for 0 <= j < power
+							final int[][] args = new int[arity][];
+							rawListLock.readLock().lock();
+							for ( int r = 0; r < arity; r++ ) args[r]=rawList.get(argIndices[r]);
+							rawListLock.readLock().unlock();
+							Horner.applyCoordinatewise(opTable, algSize, args, vRaw, power);
 						} else {
 							Operation f = ops.get(i);
 							for ( int j = 0; j < power; j++ ) {
@@ -1448,13 +2047,7 @@ public class Closer2 {
 								} // end if-else (specialEltsFound==eltsToFind.size())
 							} // end if ( eltsToFindNotNull && MINUS_ONE.equals(indicesMapOfFoundElts.get(v)) )
 							if (blocksNotNull) {
-								boolean found = false;
-								if (valuesNotNull) {
-									if (v.satisfiesConstraint(blocks, values)) found=true;
-								} else {
-									if (v.satisfiesConstraint(blocks)) found=true;
-								} // end if-else (valuesNotNull)
-								if (found) {
+								if (constraintPlan().isSatisfiedBy(v.getArray())) {
 									eltToFind=v;
 									completed=true;
 									finished=true;
@@ -1496,7 +2089,7 @@ public class Closer2 {
 					} // end while (int.increment())
 				} // end for 0 <= i < numOfOps
 				finished=true;
-			} // end run()
+			} // end applyOperations()
 			
 		} // end class SGClosePowerTask
 		
@@ -1519,6 +2112,14 @@ public class Closer2 {
 			} // end try-catch InterruptedException
 		} // end for 0 <= i < numWorkers
 		
+		for ( int i = 0; i < numWorkers; i++ ) {
+			try {
+				workers[i].join(); // an interrupted worker may still be stopping
+			} catch ( InterruptedException e ) {
+			} // end try-catch InterruptedException
+			work[i].counter.addTo(stats);
+		} // end for 0 <= i < numWorkers
+		
 		su.addAll(suTemp);
 		if (termMap!=null) termMap.putAll(termMapTemp);
 		if (termMapForOperations!=null) termMapForOperations.putAll(termMapForOperationsTemp);
@@ -1531,6 +2132,38 @@ public class Closer2 {
 		return notDone;
 	} // end onePassPowerEqualWorkload()
 	
+	/**
+	 * Counts and times the applications of each operation by one thread of an
+	 * EQUAL_WORKLOAD pass, for the pass statistics
+	 */
+	private static class WorkCounter {
+		final long[] applications;
+		final long[] nanos;
+		private int currentOp = -1;
+		private long currentOpStart;
+		
+		WorkCounter(int numOfOps) {
+			applications = new long[numOfOps];
+			nanos = new long[numOfOps];
+		} // end constructor(int)
+		
+		/**
+		 * Ends the time of the operation being applied and starts that of operation <code>i</code>
+		 */
+		void startOperation(int i) {
+			final long now = System.nanoTime();
+			if ( currentOp>=0 ) nanos[currentOp] += now-currentOpStart;
+			currentOp = i;
+			currentOpStart = now;
+		} // end startOperation(int)
+		
+		void addTo(PassStatistics stats) {
+			for ( int i = 0; i < applications.length; i++ ) {
+				if ( applications[i]>0 ) stats.addOperation(i, applications[i], nanos[i]);
+			} // end for 0 <= i < applications.length
+		} // end addTo(PassStatistics)
+	} // end class WorkCounter
+	
 	private void killThreads(Thread[] workers, Thread feeder) {
 		if (feeder!=null && feeder.isAlive()) {
 			try {
@@ -0,0 +1,297 @@
+package org.uacalc.alg;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import org.uacalc.util.*;
+
+/**
+ * A worker process for a distributed pass of <code>Closer2</code> on a power algebra.
+ * Run it with <code>java org.uacalc.alg.ClosureWorker port [address]</code> on each machine (or
+ * several times on one) and give their addresses to <code>Closer2.setWorkers</code>.
+ * <p>
+ * The worker does no authentication, so it only listens on the loopback address unless it is
+ * given the address of an interface to bind to, which should be on a trusted network. The sizes
+ * it is sent are checked against the algebra before anything is allocated for them.
+ * <p>
+ * The coordinator first sends the operation tables. For each pass it sends the elements
+ * found since the last pass, so every worker has all of them, together with the marks
+ * of the pass and which part of it is the worker's: the part-th of <code>parts</code> equal
+ * pieces of the range of each operation's argument tuples, numbered by a <code>PassRange</code>.
+ * The worker applies the operations to its part and
+ * sends back each value it does not already have, with the least (operation, arguments)
+ * giving it, and the number of applications and time for each operation, so the coordinator can add them in the order the serial pass finds them.
+ * @author Jonah Horowitz
+ */
+public class ClosureWorker {
+	static final int SETUP = 1;
+	static final int PASS = 2;
+	static final int STOP = 3;
+	static final int MAX_TABLE_SIZE = 1 << 26; // The most entries of an operation table we accept
+	static final int MAX_POWER = 1 << 20; // The most coordinates of a tuple we accept
+	
+	private int algSize;
+	private int power;
+	private int[][] opTables;
+	private int[] arities;
+	private boolean[] symmetric;
+	private final List<int[]> rawList = new ArrayList<int[]>();
+	private final FingerprintIndex index = new FingerprintIndex(rawList);
+	
+	/**
+	 * Serves one coordinator after another on the given port, on the loopback address or the
+	 * given one
+	 */
+	public static void main(String[] args) throws IOException {
+		if ( args.length<1 || args.length>2 ) {
+			System.err.println("usage: java org.uacalc.alg.ClosureWorker port [address]");
+			System.exit(1);
+		} // end if ( args.length<1 || args.length>2 )
+		final InetAddress address = args.length==2?InetAddress.getByName(args[1]):InetAddress.getLoopbackAddress();
+		final ServerSocket server = new ServerSocket(Integer.parseInt(args[0]), 50, address);
+		while (true) {
+			final Socket socket = server.accept();
+			try {
+				new ClosureWorker().serve(socket);
+			} catch ( IOException e ) {
+				System.err.println("lost the coordinator: "+e.getMessage());
+			} finally {
+				socket.close();
+			} // end try-catch-finally
+		} // end while (true)
+	} // end main(String[])
+	
+	/**
+	 * Answers the requests of the coordinator on this socket until it says to stop
+	 */
+	public void serve(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		while (true) {
+			final int request = in.readInt();
+			switch (request) {
+				case SETUP: readSetup(in); break;
+				case PASS: onePass(in, out); break;
+				case STOP: return;
+				default: throw new IOException("unknown request "+request);
+			} // end switch (request)
+		} // end while (true)
+	} // end serve(Socket)
+	
+	private void readSetup(DataInputStream in) throws IOException {
+		opTables = null; // until the setup has been read and checked
+		algSize = in.readInt();
+		power = in.readInt();
+		final int numOfOps = in.readInt();
+		if ( algSize<1 ) throw new IOException("bad algebra size "+algSize);
+		if ( power<0 || power>MAX_POWER ) throw new IOException("bad power "+power);
+		if ( numOfOps<0 ) throw new IOException("bad number of operations "+numOfOps);
+		// lists, since numOfOps is only known to be right when the tables have come
+		final List<int[]> tables = new ArrayList<int[]>();
+		final List<Integer> ars = new ArrayList<Integer>();
+		final List<Boolean> syms = new ArrayList<Boolean>();
+		for ( int i = 0; i < numOfOps; i++ ) {
+			final int arity = in.readInt();
+			final boolean sym = in.readBoolean();
+			final int length = in.readInt();
+			// the table must have algSize^arity entries, and not too many
+			long expected = 1;
+			for ( int r = 0; r < arity && expected<=MAX_TABLE_SIZE; r++ ) expected*=algSize;
+			if ( arity<0 || length!=expected || length>MAX_TABLE_SIZE ) {
+				throw new IOException("bad table of "+length+" entries for an operation of arity "+arity);
+			} // end if ( the table has the wrong size )
+			final int[] table = new int[length];
+			for ( int k = 0; k < length; k++ ) {
+				table[k] = in.readInt();
+				if ( table[k]<0 || table[k]>=algSize ) throw new IOException("bad table value "+table[k]);
+			} // end for 0 <= k < length
+			tables.add(table);
+			ars.add(arity);
+			syms.add(sym);
+		} // end for 0 <= i < numOfOps
+		arities = new int[numOfOps];
+		symmetric = new boolean[numOfOps];
+		for ( int i = 0; i < numOfOps; i++ ) {
+			arities[i] = ars.get(i);
+			symmetric[i] = syms.get(i);
+		} // end for 0 <= i < numOfOps
+		rawList.clear();
+		opTables = tables.toArray(new int[numOfOps][]);
+	} // end readSetup(DataInputStream)
+	
+	private void onePass(DataInputStream in, DataOutputStream out) throws IOException {
+		if ( opTables==null ) throw new IOException("a pass before the setup");
+		final int count = in.readInt();
+		if ( count<0 || count>Integer.MAX_VALUE-rawList.size() ) throw new IOException("bad number of elements "+count);
+		// each tuple is only made when it has been sent
+		for ( int k = 0; k < count; k++ ) rawList.add(readTuple(in, power, algSize));
+		final int closedMark = in.readInt();
+		final int currentMark = in.readInt();
+		final int part = in.readInt();
+		final int parts = in.readInt();
+		if ( closedMark<0 || closedMark>currentMark || currentMark>rawList.size() ) throw new IOException("bad marks "+closedMark+", "+currentMark);
+		if ( part<0 || part>=parts ) throw new IOException("bad part "+part+" of "+parts);
+		final Map<IntArray,int[]> found = new HashMap<IntArray,int[]>();
+		final long[] applications = new long[opTables.length];
+		final long[] nanos = new long[opTables.length];
+		for ( int i = 0; i < opTables.length; i++ ) {
+			final int arity = arities[i];
+			if ( arity==0 ) continue;
+			final long opStart = System.nanoTime();
+			final int[] opTable = opTables[i];
+			final int[] argIndices = new int[arity];
+			final int[][] args = new int[arity][];
+			int[] vRaw = new int[power];
+			final PassRange range = PassRange.make(arity, closedMark, currentMark, symmetric[i]);
+			if ( range==null ) throw new IOException("too many argument tuples to number");
+			// our share of the numbers of the tuples
+			final long share = range.size()/parts;
+			final long extra = range.size()%parts;
+			final long lo = part*share+Math.min(part, extra);
+			final long hi = lo+share+(part<extra?1:0);
+			if ( lo<hi ) range.decode(lo, argIndices);
+			for ( long t = lo; t < hi; t++, range.next(argIndices) ) {
+				for ( int r = 0; r < arity; r++ ) args[r]=rawList.get(argIndices[r]);
+				Horner.applyCoordinatewise(opTable, algSize, args, vRaw, power);
+				applications[i]++;
+				if ( index.indexOf(vRaw)<0 ) {
+					final IntArray v = new IntArray(vRaw);
+					final int[] prov = found.get(v);
+					final int[] p = new int[arity+1];
+					p[0]=i;
+					System.arraycopy(argIndices, 0, p, 1, arity);
+					if ( prov==null ) {
+						found.put(v, p);
+						vRaw = new int[power];
+					} else if ( Closer2.compareProvenance(p, prov)<0 ) {
+						// keep the least way of producing v, which is the one the serial pass finds first
+						found.put(v, p);
+					} // end if-else-if ( prov==null )
+				} // end if ( index.indexOf(vRaw)<0 )
+			} // end for lo <= t < hi
+			nanos[i] = System.nanoTime()-opStart;
+		} // end for 0 <= i < opTables.length
+		out.writeInt(found.size());
+		for ( Map.Entry<IntArray,int[]> e : found.entrySet() ) {
+			writeTuple(out, e.getKey().getArray(), algSize);
+			final int[] prov = e.getValue();
+			for ( int k = 0; k < prov.length; k++ ) out.writeInt(prov[k]);
+		} // end for ( Map.Entry<IntArray,int[]> e : found.entrySet() )
+		for ( int i = 0; i < opTables.length; i++ ) {
+			out.writeLong(applications[i]);
+			out.writeLong(nanos[i]);
+		} // end for 0 <= i < opTables.length
+		out.flush();
+	} // end onePass(DataInputStream, DataOutputStream)
+	
+	/**
+	 * Writes a tuple over a set of size <code>algSize</code>, a byte or a short a coordinate
+	 * if they are enough
+	 */
+	static void writeTuple(DataOutputStream out, int[] tuple, int algSize) throws IOException {
+		if ( algSize<=0x100 ) {
+			for ( int j = 0; j < tuple.length; j++ ) out.writeByte(tuple[j]);
+		} else if ( algSize<=0x10000 ) {
+			for ( int j = 0; j < tuple.length; j++ ) out.writeShort(tuple[j]);
+		} else {
+			for ( int j = 0; j < tuple.length; j++ ) out.writeInt(tuple[j]);
+		} // end if-else ( algSize<=0x100 )
+	} // end writeTuple(DataOutputStream, int[], int)
+	
+	static int[] readTuple(DataInputStream in, int length, int algSize) throws IOException {
+		final int[] tuple = new int[length];
+		if ( algSize<=0x100 ) {
+			for ( int j = 0; j < length; j++ ) tuple[j] = in.readUnsignedByte();
+		} else if ( algSize<=0x10000 ) {
+			for ( int j = 0; j < length; j++ ) tuple[j] = in.readUnsignedShort();
+		} else {
+			for ( int j = 0; j < length; j++ ) tuple[j] = in.readInt();
+		} // end if-else ( algSize<=0x100 )
+		for ( int j = 0; j < length; j++ ) {
+			if ( tuple[j]<0 || tuple[j]>=algSize ) throw new IOException("bad coordinate "+tuple[j]);
+		} // end for 0 <= j < length
+		return tuple;
+	} // end readTuple(DataInputStream, int, int)
+	
+	/**
+	 * The coordinator's end of the connection to a worker
+	 */
+	static class Connection {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		
+		Connection(InetSocketAddress address) throws IOException {
+			socket = new Socket();
+			socket.connect(address);
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		} // end constructor(InetSocketAddress)
+		
+		void sendSetup(int algSize, int power, int[][] opTables, int[] arities, boolean[] symmetric) throws IOException {
+			out.writeInt(SETUP);
+			out.writeInt(algSize);
+			out.writeInt(power);
+			out.writeInt(opTables.length);
+			for ( int i = 0; i < opTables.length; i++ ) {
+				out.writeInt(arities[i]);
+				out.writeBoolean(symmetric[i]);
+				out.writeInt(opTables[i].length);
+				for ( int k = 0; k < opTables[i].length; k++ ) out.writeInt(opTables[i][k]);
+			} // end for 0 <= i < opTables.length
+		} // end sendSetup(int, int, int[][], int[], boolean[])
+		
+		/**
+		 * Sends the elements of <code>rawList</code> from <code>from</code> to <code>currentMark</code>
+		 * and asks for one part of the pass
+		 */
+		void sendPass(List<int[]> rawList, int from, int algSize, int closedMark, int currentMark, int part, int parts) throws IOException {
+			out.writeInt(PASS);
+			out.writeInt(currentMark-from);
+			for ( int k = from; k < currentMark; k++ ) writeTuple(out, rawList.get(k), algSize);
+			out.writeInt(closedMark);
+			out.writeInt(currentMark);
+			out.writeInt(part);
+			out.writeInt(parts);
+			out.flush();
+		} // end sendPass(List<int[]>, int, int, int, int, int, int)
+		
+		/**
+		 * Reads the new elements of a pass into <code>found</code>, keeping the least provenance of each,
+		 * and adds the worker's applications and time for each operation to <code>stats</code>
+		 */
+		void readPass(Map<IntArray,int[]> found, int power, int algSize, int[] arities, PassStatistics stats) throws IOException {
+			final int count = in.readInt();
+			if ( count<0 ) throw new IOException("bad number of elements "+count);
+			for ( int k = 0; k < count; k++ ) {
+				final IntArray v = new IntArray(readTuple(in, power, algSize));
+				final int i = in.readInt();
+				if ( i<0 || i>=arities.length ) throw new IOException("bad operation index "+i);
+				final int[] prov = new int[arities[i]+1];
+				prov[0]=i;
+				for ( int r = 1; r < prov.length; r++ ) prov[r] = in.readInt();
+				final int[] old = found.get(v);
+				if ( old==null || Closer2.compareProvenance(prov, old)<0 ) found.put(v, prov);
+			} // end for 0 <= k < count
+			for ( int i = 0; i < arities.length; i++ ) {
+				final long apps = in.readLong();
+				stats.addOperation(i, apps, in.readLong());
+			} // end for 0 <= i < arities.length
+		} // end readPass(Map<IntArray,int[]>, int, int, int[], PassStatistics)
+		
+		void close() {
+			try {
+				out.writeInt(STOP);
+				out.flush();
+			} catch ( IOException e ) {
+			} // end try-catch IOException
+			try {
+				socket.close();
+			} catch ( IOException e ) {
+			} // end try-catch IOException
+		} // end close()
+	} // end class Connection
+} // end class ClosureWorker
@@ -0,0 +1,154 @@
+/* CoordinateReduction.java */
+
+package org.uacalc.alg;
+
+import java.util.*;
+import org.uacalc.alg.sublat.SubalgebraLattice;
+import org.uacalc.util.IntArray;
+
+/**
+ * A way to drop the coordinates of a subalgebra of a product which are
+ * determined by other coordinates.
+ * <p>
+ * Coordinate <code>j</code> is determined by coordinate <code>i</code>
+ * on the subalgebra generated by some elements if the map taking the
+ * <code>i</code>th coordinates of the generators to their
+ * <code>j</code>th coordinates extends to a homomorphism from the
+ * subalgebra of factor <code>i</code> they generate into factor
+ * <code>j</code>. Then the projection onto the other coordinates is
+ * one-to-one on the subalgebra and commutes with the operations, so the
+ * subalgebra can be closed in the smaller product and its elements
+ * lifted afterwards. This is the idea of
+ * {@link SubProductAlgebra#thinGenerators()}.
+ *
+ * @author Ralph Freese
+ */
+final class CoordinateReduction {
+
+  private final BigProductAlgebra reduced;
+  private final int[] kept;     // the coordinates kept, in order
+  private final int[] source;   // coordinate j is determined by kept[source[j]]
+  private final int[][] maps;   // by the map maps[j], or null if equal to it
+
+  private CoordinateReduction(BigProductAlgebra algebra, int[] kept,
+                              int[] source, int[][] maps) {
+    this.kept = kept;
+    this.source = source;
+    this.maps = maps;
+    if (algebra.isPower()) {
+      reduced = new BigProductAlgebra(algebra.factors().get(0), kept.length);
+    }
+    else {
+      final List<SmallAlgebra> factors = new ArrayList<SmallAlgebra>(kept.length);
+      for (int i = 0; i < kept.length; i++) {
+        factors.add(algebra.factors().get(kept[i]));
+      }
+      reduced = new BigProductAlgebra(factors);
+    }
+  }
+
+  /**
+   * The reduction for the subalgebra of <code>algebra</code> generated
+   * by <code>gens</code>, or null if no coordinate can be dropped.
+   */
+  static CoordinateReduction make(BigProductAlgebra algebra,
+                                  List<IntArray> gens) {
+    if (gens.isEmpty()) return null;
+    final int n = algebra.getNumberOfFactors();
+    final List<SmallAlgebra> factors = algebra.factors();
+    final int[][] columns = new int[n][gens.size()];
+    for (int t = 0; t < gens.size(); t++) {
+      final int[] g = gens.get(t).getArray();
+      for (int j = 0; j < n; j++) {
+        columns[j][t] = g[j];
+      }
+    }
+    final List<Integer> kept = new ArrayList<Integer>();
+    final int[] source = new int[n];
+    final int[][] maps = new int[n][];
+    boolean dropped = false;
+    for (int j = 0; j < n; j++) {
+      source[j] = -1;
+      for (int k = 0; k < kept.size(); k++) {
+        final int i = kept.get(k);
+        if (factors.get(i) == factors.get(j)
+            && Arrays.equals(columns[i], columns[j])) {
+          source[j] = k;  // a copy of coordinate i
+          break;
+        }
+        final Map<Integer,Integer> homo =
+          SubalgebraLattice.extendToHomomorphism(columns[i], columns[j],
+                                           factors.get(i), factors.get(j));
+        if (homo != null) {
+          final int[] map = new int[factors.get(i).cardinality()];
+          Arrays.fill(map, -1);
+          for (Map.Entry<Integer,Integer> e : homo.entrySet()) {
+            map[e.getKey()] = e.getValue();
+          }
+          source[j] = k;
+          maps[j] = map;
+          break;
+        }
+      }
+      if (source[j] < 0) {
+        source[j] = kept.size();
+        kept.add(j);
+      }
+      else dropped = true;
+    }
+    if (!dropped) return null;
+    final int[] keptArr = new int[kept.size()];
+    for (int k = 0; k < keptArr.length; k++) {
+      keptArr[k] = kept.get(k);
+    }
+    return new CoordinateReduction(algebra, keptArr, source, maps);
+  }
+
+  /**
+   * The product of the factors at the coordinates kept.
+   */
+  BigProductAlgebra getReducedAlgebra() { return reduced; }
+
+  int numberKept() { return kept.length; }
+
+  /**
+   * The coordinates of <code>elt</code> which are kept.
+   */
+  IntArray project(IntArray elt) {
+    final int[] raw = elt.getArray();
+    final int[] ans = new int[kept.length];
+    for (int k = 0; k < kept.length; k++) {
+      ans[k] = raw[kept[k]];
+    }
+    return new IntArray(ans);
+  }
+
+  /**
+   * The element of the whole product whose kept coordinates are
+   * <code>red</code>, or null if the maps are not defined there.
+   */
+  int[] lift(int[] red) {
+    final int n = source.length;
+    final int[] ans = new int[n];
+    for (int j = 0; j < n; j++) {
+      final int x = red[source[j]];
+      final int[] map = maps[j];
+      if (map == null) ans[j] = x;
+      else {
+        if (map[x] < 0) return null;
+        ans[j] = map[x];
+      }
+    }
+    return ans;
+  }
+
+  /**
+   * Test if <code>elt</code> can be in the subalgebra; that is, if its
+   * dropped coordinates are determined by its kept ones.
+   */
+  boolean isConsistent(IntArray elt) {
+    final int[] full = lift(project(elt).getArray());
+    return full != null && Arrays.equals(full, elt.getArray());
+  }
+
+}
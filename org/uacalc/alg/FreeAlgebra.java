@@ -303,15 +303,12 @@ public class FreeAlgebra extends SubProductAlgebra implements SmallAlgebra {
     size = univ.size();
     if (report!=null) report.addLine("Free algebra size = "+size);
 //    logger.info("free algebra size = " + size);
-    univHashMap = new HashMap<IntArray, Integer>(size);
     terms = new Term[univ.size()];
     int k = 0;
     for (Iterator<IntArray> it = univ.iterator(); it.hasNext(); k++) {
-      IntArray elem = it.next();
-      univHashMap.put(elem, new Integer(k));
-      terms[k] = termMap.get(elem);
+      terms[k] = termMap.get(it.next());
     }
-    universe = new HashSet(univ);
+    makeUniverseIndex();
     makeOperations();
   }
   
@@ -332,16 +329,31 @@ public class FreeAlgebra extends SubProductAlgebra implements SmallAlgebra {
    */
   public static Equation findEquationOfAnotB(SmallAlgebra A, SmallAlgebra B, 
                                                int[] bGens, ProgressReport report) {
+    return findEquationOfAnotB(A, B, bGens, report, 1);
+  }
+
+  /**
+   * Find an equation holding in A and failing in B under the substitution, 
+   * closing with <code>numThreads</code> threads, or with all available 
+   * cores if it is 0. With more than one thread the equation found may 
+   * not be the one the serial closure finds, but it is found exactly 
+   * when that one is.
+   * 
+   * @return a list of two terms witnessing the failure, or null
+   */
+  public static Equation findEquationOfAnotB(SmallAlgebra A, SmallAlgebra B, 
+                        int[] bGens, ProgressReport report, int numThreads) {
     //FreeAlgebra F = new FreeAlgebra(A, bGens.length, false);
     // TODO: fix this, fix this fix this !!! make the decomp = true !!!!!!!!!
     FreeAlgebra F = new FreeAlgebra(A, bGens.length, false, true, true, null, report);
     System.out.println("gens v length = " + F.generators().get(0).universeSize());
-    report.addLine("gens v length = " + F.generators().get(0).universeSize());
+    if (report != null) report.addLine("gens v length = " + F.generators().get(0).universeSize());
     Closer closer = new Closer(F.getProductAlgebra(), F.generators(), F.getTermMap());
     closer.setProgressReport(report);
     closer.setImageAlgebra(B);
     closer.setHomomorphism(bGens);
-    closer.sgClose();
+    if (numThreads == 1) closer.sgClose();
+    else closer.sgCloseParallel(numThreads, 0);
     return closer.getFailingEquation();
   }
 
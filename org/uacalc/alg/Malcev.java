@@ -1174,6 +1174,7 @@ org.uacalc.ui.LatDrawer.drawLattice(new org.uacalc.lat.BasicLattice("", maxLevel
       report.addLine("This variety is not congruence distributive.");
       report.addLine("Checking if this variety is congruencre SD-meet.");
     }
+    sub = new ArrayList<IntArray>(sub);  // the closure may be read only
     Collections.sort(sub, IntArray.lexicographicComparitor());
     final List<IntArray> path3 = sdPath(sub, g0, g2);
     if (path3 != null) {
@@ -2367,6 +2368,7 @@ org.uacalc.ui.LatDrawer.drawLattice(new org.uacalc.lat.BasicLattice("", maxLevel
         }
         public boolean equals(Object o) { return false; }
     };
+    sub = new ArrayList(sub);  // the closure may be read only
     Collections.sort(sub, c);
     final List path = hagemannMitschkeLevelPath(sub, g0, g2);
     if (path == null) {
@@ -0,0 +1,222 @@
+package org.uacalc.alg;
+
+import java.io.*;
+import java.util.*;
+
+import org.uacalc.alg.op.OperationSymbol;
+
+/**
+ * Statistics of one pass of a <code>Closer2</code> closure: how many operation applications
+ * were tried and how long they took for each operation, how many elements were new, and how
+ * full the membership index is. A closer keeps one of these for each pass; see
+ * <code>Closer2.getStatistics</code> and <code>Closer2.writeStatistics</code>.
+ * <p>
+ * Every type of pass counts and times its applications; the threaded passes add up what
+ * each of their threads or workers did. The <code>PARALLEL</code> passes also sample how
+ * many chunks are waiting in the queue feeding their threads, which stays near zero when
+ * the feeder cannot keep up with them.
+ * @author Jonah Horowitz
+ */
+public class PassStatistics {
+	private final int pass;
+	private final int passType;
+	private final int closedMark;
+	private final int startSize;
+	private final int threads;
+	private final OperationSymbol[] symbols;
+	final long[] applications; // Applications of each operation, counted by the pass
+	final long[] operationNanos; // Time spent on each operation, summed over the threads or workers
+	private boolean counted = false;
+	private final long startNanos;
+	private int currentOp = -1;
+	private long currentOpStart;
+	private long elapsedNanos = -1;
+	private int endSize = -1;
+	private int indexSize = -1;
+	private int indexCapacity = -1;
+	private int indexResizes = 0;
+	private int maxQueueDepth = -1;
+	private long queueDepthTotal = 0;
+	private long queueDepthSamples = 0;
+	
+	PassStatistics(int pass, int passType, int closedMark, int startSize, int threads, OperationSymbol[] symbols) {
+		this.pass = pass;
+		this.passType = passType;
+		this.closedMark = closedMark;
+		this.startSize = startSize;
+		this.threads = threads;
+		this.symbols = symbols;
+		applications = new long[symbols.length];
+		operationNanos = new long[symbols.length];
+		startNanos = System.nanoTime();
+	} // end constructor(int, int, int, int, int, OperationSymbol[])
+	
+	/**
+	 * Marks the start of the applications of operation <code>i</code> by a pass done in this
+	 * thread, ending the time of the one before
+	 */
+	void startOperation(int i) {
+		final long now = System.nanoTime();
+		if ( currentOp>=0 ) operationNanos[currentOp] += now-currentOpStart;
+		currentOp = i;
+		currentOpStart = now;
+		counted = true;
+	} // end startOperation(int)
+	
+	/**
+	 * Adds applications of operation <code>i</code> counted and timed elsewhere, such as in
+	 * another thread or process
+	 */
+	synchronized void addOperation(int i, long apps, long nanos) {
+		applications[i] += apps;
+		operationNanos[i] += nanos;
+		counted = true;
+	} // end addOperation(int, long, long)
+	
+	/**
+	 * Records that <code>depth</code> chunks were waiting in the feeder queue
+	 */
+	void sampleQueueDepth(int depth) {
+		if ( depth>maxQueueDepth ) maxQueueDepth = depth;
+		queueDepthTotal += depth;
+		queueDepthSamples++;
+	} // end sampleQueueDepth(int)
+	
+	/**
+	 * Ends the pass, with <code>endSize</code> elements, and an index of the elements which has
+	 * <code>indexSize</code> entries in a table of <code>indexCapacity</code> slots and has grown
+	 * <code>indexResizes</code> times during the pass
+	 */
+	void finish(int endSize, int indexSize, int indexCapacity, int indexResizes) {
+		startOperation(-1);
+		elapsedNanos = System.nanoTime()-startNanos;
+		this.endSize = endSize;
+		this.indexSize = indexSize;
+		this.indexCapacity = indexCapacity;
+		this.indexResizes = indexResizes;
+	} // end finish(int, int, int, int)
+	
+	public int getPass() { return pass; }
+	public int getPassType() { return passType; }
+	public int getClosedMark() { return closedMark; }
+	public int getStartSize() { return startSize; }
+	public int getEndSize() { return endSize; }
+	public int getThreads() { return threads; }
+	public long getElapsedNanos() { return elapsedNanos; }
+	public int getNewElements() { return endSize-startSize; }
+	public int getIndexSize() { return indexSize; }
+	public int getIndexCapacity() { return indexCapacity; }
+	public int getIndexResizes() { return indexResizes; }
+	public int getMaxQueueDepth() { return maxQueueDepth; }
+	public int getNumberOfOperations() { return symbols.length; }
+	public OperationSymbol getOperationSymbol(int i) { return symbols[i]; }
+	
+	/**
+	 * The number of applications of operation <code>i</code>, or -1 if they were not counted
+	 */
+	public long getApplications(int i) { return counted?applications[i]:-1; }
+	
+	/**
+	 * The nanoseconds spent applying operation <code>i</code>, summed over the threads or workers,
+	 * or -1 if this was not measured
+	 */
+	public long getOperationNanos(int i) { return counted?operationNanos[i]:-1; }
+	
+	/**
+	 * The total number of applications, or -1 if they were not counted
+	 */
+	public long getApplications() {
+		if (!counted) return -1;
+		long total = 0;
+		for ( int i = 0; i < applications.length; i++ ) total += applications[i];
+		return total;
+	} // end getApplications()
+	
+	/**
+	 * The number of applications giving an element already found, or -1 if they were not counted
+	 */
+	public long getDuplicates() {
+		return counted?getApplications()-getNewElements():-1;
+	} // end getDuplicates()
+	
+	/**
+	 * The fraction of the index's slots in use at the end of the pass, or -1 if unknown
+	 */
+	public double getIndexLoad() {
+		return indexCapacity>0?(double)indexSize/indexCapacity:-1;
+	} // end getIndexLoad()
+	
+	/**
+	 * The mean number of chunks waiting in the feeder queue, or -1 if the pass had no queue
+	 */
+	public double getMeanQueueDepth() {
+		return queueDepthSamples>0?(double)queueDepthTotal/queueDepthSamples:-1;
+	} // end getMeanQueueDepth()
+	
+	/**
+	 * The time spent applying operations over the time the threads had, or -1 if not measured
+	 */
+	public double getUtilisation() {
+		if ( !counted || elapsedNanos<=0 ) return -1;
+		long busy = 0;
+		for ( int i = 0; i < operationNanos.length; i++ ) busy += operationNanos[i];
+		return (double)busy/((double)elapsedNanos*Math.max(threads, 1));
+	} // end getUtilisation()
+	
+	/**
+	 * These statistics as a JSON object on one line
+	 */
+	public String toJson() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("{\"pass\":").append(pass);
+		sb.append(",\"passType\":").append(passType);
+		sb.append(",\"closedMark\":").append(closedMark);
+		sb.append(",\"startSize\":").append(startSize);
+		sb.append(",\"endSize\":").append(endSize);
+		sb.append(",\"newElements\":").append(getNewElements());
+		sb.append(",\"applications\":").append(getApplications());
+		sb.append(",\"duplicates\":").append(getDuplicates());
+		sb.append(",\"elapsedNanos\":").append(elapsedNanos);
+		sb.append(",\"threads\":").append(threads);
+		sb.append(",\"utilisation\":").append(getUtilisation());
+		sb.append(",\"indexSize\":").append(indexSize);
+		sb.append(",\"indexCapacity\":").append(indexCapacity);
+		sb.append(",\"indexResizes\":").append(indexResizes);
+		sb.append(",\"maxQueueDepth\":").append(maxQueueDepth);
+		sb.append(",\"meanQueueDepth\":").append(getMeanQueueDepth());
+		sb.append(",\"operations\":[");
+		for ( int i = 0; i < symbols.length; i++ ) {
+			if ( i>0 ) sb.append(',');
+			sb.append("{\"symbol\":\"").append(escape(symbols[i].name())).append('"');
+			sb.append(",\"arity\":").append(symbols[i].arity());
+			sb.append(",\"applications\":").append(getApplications(i));
+			sb.append(",\"nanos\":").append(getOperationNanos(i)).append('}');
+		} // end for 0 <= i < symbols.length
+		sb.append("]}");
+		return sb.toString();
+	} // end toJson()
+	
+	private static String escape(String s) {
+		final StringBuilder sb = new StringBuilder();
+		for ( int k = 0; k < s.length(); k++ ) {
+			final char c = s.charAt(k);
+			if ( c=='"' || c=='\\' ) sb.append('\\').append(c);
+			else if ( c<0x20 ) sb.append(String.format("\\u%04x", (int)c));
+			else sb.append(c);
+		} // end for 0 <= k < s.length()
+		return sb.toString();
+	} // end escape(String)
+	
+	/**
+	 * Writes each of <code>stats</code> as a line of JSON
+	 */
+	public static void writeJsonLines(List<PassStatistics> stats, Writer out) throws IOException {
+		for ( PassStatistics s : stats ) {
+			out.write(s.toJson());
+			out.write('\n');
+		} // end for ( PassStatistics s : stats )
+		out.flush();
+	} // end writeJsonLines(List<PassStatistics>, Writer)
+	
+	public String toString() { return toJson(); }
+} // end class PassStatistics
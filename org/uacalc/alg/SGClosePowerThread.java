@@ -129,6 +129,8 @@ public class SGClosePowerThread extends Thread {
 		HashSet<IntArray> su = null;
 		HashMap<IntArray,Integer> morphism = null;
 		Equation failingEquation = null;
+		long chunkStart = 0;
+		long chunkApplications = 0;
 		while (true) {
 			if ( this.isInterrupted() ) {
 				setStatus(SAFE_STOP);
@@ -141,6 +143,8 @@ public class SGClosePowerThread extends Thread {
 //					startTime = System.currentTimeMillis();
 //					System.err.println("Worker thread " + threadNumber + " working on chunk " + tempChunk.toString() + ".");
 					arity=arities[tempChunk.opIndex];
+					chunkStart = System.nanoTime();
+					chunkApplications = 0;
 					finalSegment = new int[indicesPerChunk];
 					su = new HashSet<IntArray>();
 					termMap = new HashMap<IntArray,Term>();
@@ -175,16 +179,11 @@ public class SGClosePowerThread extends Thread {
 				int[] vRaw = new int[power];
 				int[] opTable = opTables[tempChunk.opIndex];
 				int[] argIndices = concatenateIntArrays(tempChunk.initialSegment,finalSegment);
+				chunkApplications++;
 				if ( opTable != null ) {
-					for ( int j = 0; j < power; j++ ) {
-						int factor = algSize;
-						int index = rawList.get(argIndices[0])[j];
-						for ( int r = 1; r < arity; r++ ) {
-							index+=factor*rawList.get(argIndices[r])[j];
-							factor=factor*algSize;
-						} // end for 1 <= r < arity
-						vRaw[j]=opTable[index];
-					} // end for 0 <= j < power
+					final int[][] args = new int[arity][];
+					for ( int r = 0; r < arity; r++ ) args[r]=rawList.get(argIndices[r]);
+					Horner.applyCoordinatewise(opTable, algSize, args, vRaw, power);
 				} else {
 					final Operation f = ops.get(tempChunk.opIndex);
 					for ( int j = 0; j < power; j++ ) {
@@ -232,8 +231,9 @@ public class SGClosePowerThread extends Thread {
 				} // end if ( !collector.offer(presult) )
 			} // end while ( resultsQueue.size() > 0 )
 			if ( tempChunk!=null && !inc.increment() ) {
-				tempChunk=null;
 				SGClosePowerResult tempRes = new SGClosePowerResult(termMap, morphism, failingEquation);
+				tempRes.setWork(tempChunk.opIndex, chunkApplications, System.nanoTime()-chunkStart);
+				tempChunk=null;
 //				status.addChunk(System.currentTimeMillis()-startTime);
 				if ( !collector.offer(tempRes) ) {
 					resultsQueue.add(tempRes);
@@ -285,6 +285,9 @@ public class SGClosePowerThread extends Thread {
 		public HashMap<IntArray,Integer> homomorphism;
 		public Equation failingEquation;
 		public int completed=-1;
+		public int opIndex=-1; // The operation applied in the chunk
+		public long applications=0; // How many times it was applied
+		public long nanos=0; // How long the chunk took
 		
 		public SGClosePowerResult(HashMap<IntArray,Term> newTermMap, HashMap<IntArray,Integer> newHomomorphism, Equation newFailingEquation) {
 			termMap=newTermMap;
@@ -297,5 +300,14 @@ public class SGClosePowerThread extends Thread {
 			completed=threadNum;			
 		} // end constructor(int)
 		
+		/**
+		 * Records the work done on the chunk, for the pass statistics
+		 */
+		public void setWork(int newOpIndex, long newApplications, long newNanos) {
+			opIndex=newOpIndex;
+			applications=newApplications;
+			nanos=newNanos;
+		} // end setWork(int, long, long)
+		
 	} // end class SGClosePowerResult
 } // end class SGClosePowerThread
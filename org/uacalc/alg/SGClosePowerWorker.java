@@ -0,0 +1,440 @@
+package org.uacalc.alg;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.uacalc.util.*;
+import org.uacalc.alg.op.*;
+
+/**
+ * A worker for <code>org.uacalc.alg.Closer.sgClosePowerParallel</code>.
+ * All of the workers of a pass share a <code>Pass</code>. They take work items, each a
+ * block of first arguments of one operation, from an atomic counter and add the
+ * elements they find straight into the shared <code>ConcurrentTupleStore</code>, so
+ * there is no feeder or collector thread.
+ * A pass can be over a power, with one table for each operation, or over a product
+ * of different algebras, with a table for each operation and each coordinate.
+ * When looking for a homomorphism the workers also find the image of each value they
+ * compute and check it against the image of the element already there, if any.
+ * @author Jonah Horowitz
+ */
+public class SGClosePowerWorker implements Runnable {
+	/**
+	 * The number of operation applications we aim to have in each work item
+	 */
+	public static final int TARGET_ITEM_WORK = 1 << 12;
+
+	/**
+	 * The state of one pass, shared by its workers. Everything except the counters
+	 * and the stop flag is read only.
+	 */
+	public static class Pass {
+		final ConcurrentTupleStore store;
+		final int power;
+		final int algSize;
+		final int[][] opTables;
+		final int[] arities;
+		final List<Operation> ops;
+		final int[] factorSizes; // the size of the factor at each coordinate, or null for a power
+		final int[][][] factorTables; // the table of op i at coordinate j, or null if there is none
+		final Operation[][] factorOps; // op i at coordinate j
+		final int closedMark;
+		final int currentMark;
+		final int[] itemStarts; // op i has the items itemStarts[i] <= item < itemStarts[i+1]
+		final int[] grains; // the number of first arguments in an item of op i
+		final int[] eltToFind;
+		final ConstraintPlan constraint;
+		final int maxSize;
+		final int cardinality;
+		boolean[] symmetric = null; // only the nondecreasing argument tuples of these ops are tried
+		AbsorptionTable[] absorption = null; // argument tuples these say give an argument are skipped
+		Images images = null; // the images under the homomorphism, or null if there is none
+		int[][] imgTables = null; // the tables of the operations of the image algebra
+		Operation[] imgOps = null;
+		int imgSize = 0;
+		private int[] failingApplication = null; // index, op index, then the argument indices
+		final AtomicInteger nextItem = new AtomicInteger();
+		final AtomicInteger itemsDone = new AtomicInteger();
+		final AtomicInteger foundIndex = new AtomicInteger(-1);
+		volatile boolean stop = false;
+
+		/**
+		 * @param eltToFind the element to look for, or null
+		 * @param constraint a compiled blocks and values constraint, or null
+		 * @param maxSize stop once there are this many elements (if positive)
+		 * @param cardinality the size of the whole power, or a nonpositive number if too big
+		 */
+		public Pass(ConcurrentTupleStore store, int power, int algSize, int[][] opTables, int[] arities, List<Operation> ops,
+				int closedMark, int currentMark, int numThreads, int[] eltToFind, ConstraintPlan constraint, int maxSize, int cardinality) {
+			this(store, power, algSize, opTables, arities, ops, null, null, null,
+					closedMark, currentMark, numThreads, eltToFind, constraint, maxSize, cardinality);
+		} // end constructor for powers
+		
+		/**
+		 * A pass over a product of different algebras.
+		 * @param factorSizes the size of the factor at each coordinate
+		 * @param factorTables the table of operation i at coordinate j, or null if that operation has none
+		 * @param factorOps operation i at coordinate j
+		 */
+		public Pass(ConcurrentTupleStore store, int[] factorSizes, int[][][] factorTables, Operation[][] factorOps, int[] arities,
+				int closedMark, int currentMark, int numThreads, int[] eltToFind, ConstraintPlan constraint, int maxSize, int cardinality) {
+			this(store, factorSizes.length, 0, null, arities, null, factorSizes, factorTables, factorOps,
+					closedMark, currentMark, numThreads, eltToFind, constraint, maxSize, cardinality);
+		} // end constructor for products
+		
+		private Pass(ConcurrentTupleStore store, int power, int algSize, int[][] opTables, int[] arities, List<Operation> ops,
+				int[] factorSizes, int[][][] factorTables, Operation[][] factorOps,
+				int closedMark, int currentMark, int numThreads, int[] eltToFind, ConstraintPlan constraint, int maxSize, int cardinality) {
+			this.store = store;
+			this.power = power;
+			this.algSize = algSize;
+			this.opTables = opTables;
+			this.arities = arities;
+			this.ops = ops;
+			this.factorSizes = factorSizes;
+			this.factorTables = factorTables;
+			this.factorOps = factorOps;
+			this.closedMark = closedMark;
+			this.currentMark = currentMark;
+			this.eltToFind = eltToFind;
+			this.constraint = constraint;
+			this.maxSize = maxSize;
+			this.cardinality = cardinality;
+			final int k = arities.length;
+			itemStarts = new int[k+1];
+			grains = new int[k];
+			long total = 0;
+			for ( int i = 0; i < k; i++ ) {
+				itemStarts[i] = (int)total;
+				grains[i] = 1;
+				if ( arities[i]==0 ) continue;
+				final int firstArgs = currentMark - lowestFirstArg(i);
+				long workPerFirstArg = 1;
+				for ( int r = 1; r < arities[i] && workPerFirstArg < TARGET_ITEM_WORK; r++ ) workPerFirstArg*=currentMark;
+				long grain = Math.max(1, TARGET_ITEM_WORK / workPerFirstArg);
+				// keep enough items for the threads to share the op evenly
+				grain = Math.max(1, Math.min(grain, firstArgs / (8L * numThreads)));
+				grains[i] = (int)grain;
+				total += (firstArgs + grain - 1) / grain;
+			} // end for 0 <= i < k
+			if ( total > Integer.MAX_VALUE ) throw new IllegalArgumentException("too many work items");
+			itemStarts[k] = (int)total;
+		} // end constructor
+
+		final int lowestFirstArg(int opIndex) {
+			return arities[opIndex]==1 ? closedMark : 0;
+		} // end lowestFirstArg(int)
+
+		/**
+		 * Only try the nondecreasing argument tuples of the operations marked here, which 
+		 * should be totally symmetric. Must be set before the workers start.
+		 */
+		public Pass setSymmetric(boolean[] symmetric) {
+			this.symmetric = symmetric;
+			return this;
+		} // end setSymmetric(boolean[])
+
+		/**
+		 * Skip the argument tuples for which these tables say the value is one of the 
+		 * arguments. Must be set before the workers start.
+		 */
+		public Pass setAbsorption(AbsorptionTable[] absorption) {
+			this.absorption = absorption;
+			return this;
+		} // end setAbsorption(AbsorptionTable[])
+
+		/**
+		 * Extend the homomorphism given by <code>images</code> to the new elements, and
+		 * stop at an application whose image is not the image of its value. The images of
+		 * the elements below <code>currentMark</code> must all be set. Must be set before
+		 * the workers start.
+		 * @param imgOps the operations of the image algebra
+		 * @param imgTables their tables, or null for those that have none
+		 * @param imgSize the size of the image algebra
+		 */
+		public Pass setHomomorphism(Operation[] imgOps, int[][] imgTables, int imgSize, Images images) {
+			this.imgOps = imgOps;
+			this.imgTables = imgTables;
+			this.imgSize = imgSize;
+			this.images = images;
+			return this;
+		} // end setHomomorphism(Operation[], int[][], int, Images)
+
+		/**
+		 * The index of the element, the index of the operation and the indices of the
+		 * arguments of an application whose image is not the image of the element it
+		 * gives, or null if none was found.
+		 */
+		public synchronized int[] getFailingApplication() {
+			return failingApplication;
+		} // end getFailingApplication()
+
+		synchronized void failed(int index, int opIndex, int[] argIndices) {
+			if ( failingApplication == null ) {
+				failingApplication = new int[2+argIndices.length];
+				failingApplication[0] = index;
+				failingApplication[1] = opIndex;
+				System.arraycopy(argIndices, 0, failingApplication, 2, argIndices.length);
+			} // end if ( failingApplication == null )
+			stop = true;
+		} // end failed(int, int, int[])
+
+		public int numberOfItems() {
+			return itemStarts[itemStarts.length-1];
+		} // end numberOfItems()
+
+		public int itemsDone() {
+			return itemsDone.get();
+		} // end itemsDone()
+
+		/**
+		 * The index of an element which was looked for and found, or -1
+		 */
+		public int getFoundIndex() {
+			return foundIndex.get();
+		} // end getFoundIndex()
+
+		public boolean isStopped() {
+			return stop;
+		} // end isStopped()
+
+		public void stop() {
+			stop = true;
+		} // end stop()
+
+		void found(int index) {
+			foundIndex.compareAndSet(-1, index);
+			stop = true;
+		} // end found(int)
+	} // end class Pass
+
+	/**
+	 * The images of the elements under a homomorphism, by index, which the workers can 
+	 * set and read at the same time. The image of an element is set by the worker which 
+	 * added it right after adding it, so a worker which finds the same element may have 
+	 * to wait a moment for it.
+	 */
+	public static class Images {
+		static final int CHUNK_SHIFT = 14;
+		static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+		// the image of each element plus one, or 0 if it is not known yet
+		private volatile AtomicIntegerArray[] chunks = new AtomicIntegerArray[16];
+		private final Object lock = new Object();
+
+		/**
+		 * The image of the element with this index, or -1 if it is not known yet
+		 */
+		public int get(int index) {
+			final AtomicIntegerArray[] cs = chunks;
+			final int c = index >>> CHUNK_SHIFT;
+			if ( c >= cs.length || cs[c] == null ) return -1;
+			return cs[c].get(index & CHUNK_MASK) - 1;
+		} // end get(int)
+
+		public void set(int index, int image) {
+			final int c = index >>> CHUNK_SHIFT;
+			AtomicIntegerArray[] cs = chunks;
+			AtomicIntegerArray chunk = c < cs.length ? cs[c] : null;
+			if ( chunk == null ) {
+				synchronized (lock) {
+					cs = chunks;
+					if ( c >= cs.length ) cs = Arrays.copyOf(cs, Math.max(2*cs.length, c+1));
+					if ( cs[c] == null ) cs[c] = new AtomicIntegerArray(CHUNK_MASK+1);
+					chunk = cs[c];
+					chunks = cs;
+				} // end synchronized (lock)
+			} // end if ( chunk == null )
+			chunk.set(index & CHUNK_MASK, image+1);
+		} // end set(int, int)
+	} // end class Images
+
+	private final Pass pass;
+	private final boolean recordTerms;
+	// the new elements found and how: index, op index, then the argument indices
+	private int[] provenance = new int[64];
+	private int provenanceSize = 0;
+	private volatile Throwable failure = null;
+
+	/**
+	 * @param recordTerms whether to record how each new element was found, so its term can be made
+	 */
+	public SGClosePowerWorker(Pass pass, boolean recordTerms) {
+		this.pass = pass;
+		this.recordTerms = recordTerms;
+	} // end constructor(Pass, boolean)
+
+	public int[] getProvenance() {
+		return provenance;
+	} // end getProvenance()
+
+	public int getProvenanceSize() {
+		return provenanceSize;
+	} // end getProvenanceSize()
+
+	/**
+	 * The exception which stopped this worker, or null
+	 */
+	public Throwable getFailure() {
+		return failure;
+	} // end getFailure()
+
+	@Override
+	public void run() {
+		try {
+			work();
+		} catch ( Throwable t ) {
+			failure = t;
+			pass.stop();
+		} // end try-catch Throwable
+	} // end run()
+
+	private void work() {
+		final Pass p = pass;
+		final int[] itemStarts = p.itemStarts;
+		final int k = p.arities.length;
+		final int total = p.numberOfItems();
+		final int[] vRaw = new int[p.power];
+		int opIndex = 0;
+		while ( !p.stop ) {
+			if ( Thread.currentThread().isInterrupted() ) {
+				p.stop();
+				return;
+			} // end if ( Thread.currentThread().isInterrupted() )
+			final int item = p.nextItem.getAndIncrement();
+			if ( item >= total ) return;
+			// items are handed out in increasing order, so search forward from the last op
+			while ( opIndex < k-1 && item >= itemStarts[opIndex+1] ) opIndex++;
+			while ( item < itemStarts[opIndex] ) opIndex--;
+			final int from = p.lowestFirstArg(opIndex) + (item - itemStarts[opIndex]) * p.grains[opIndex];
+			final int to = Math.min(p.currentMark, from + p.grains[opIndex]);
+			doItem(opIndex, from, to, vRaw);
+			p.itemsDone.incrementAndGet();
+		} // end while ( !p.stop )
+	} // end work()
+
+	private void doItem(final int opIndex, final int from, final int to, final int[] vRaw) {
+		final Pass p = pass;
+		final int arity = p.arities[opIndex];
+		final int power = p.power;
+		final int algSize = p.algSize;
+		final boolean product = p.factorSizes != null;
+		final int[] opTable = product ? null : p.opTables[opIndex];
+		final Operation f = product || opTable != null ? null : p.ops.get(opIndex);
+		final int[][] tables = product ? p.factorTables[opIndex] : null;
+		final Operation[] fs = product ? p.factorOps[opIndex] : null;
+		final int maxIndex = p.currentMark - 1;
+		final int[] argIndices = new int[arity];
+		// the decoded arguments; only the positions which changed are decoded again
+		final int[][] args = new int[arity][power];
+		final int[] decoded = new int[arity];
+		Arrays.fill(decoded, -1);
+		final int[] arg = opTable == null ? new int[arity] : null;
+		final int[] rest = new int[arity-1];
+		final boolean symmetric = p.symmetric != null && p.symmetric[opIndex];
+		final AbsorptionTable absorbing = p.absorption != null ? p.absorption[opIndex] : null;
+		final Images images = p.images;
+		final int[] imgTable = images != null ? p.imgTables[opIndex] : null;
+		final Operation imgOp = images != null && imgTable == null ? p.imgOps[opIndex] : null;
+		final int[] imgArgs = images != null ? new int[arity] : null;
+		for ( int a0 = from; a0 < to; a0++ ) {
+			if ( p.stop ) return;
+			ArrayIncrementor inc = null;
+			if ( arity > 1 && symmetric ) {
+				// the rest of a nondecreasing tuple starting with a0
+				final int lastMin = a0 >= p.closedMark ? 0 : p.closedMark;
+				Arrays.fill(rest, a0);
+				if ( rest[arity-2] < lastMin ) rest[arity-2] = lastMin;
+				inc = SequenceGenerator.nondecreasingSequenceIncrementor(rest, maxIndex, lastMin);
+			} else if ( arity > 1 ) {
+				Arrays.fill(rest, 0);
+				if ( a0 >= p.closedMark ) {
+					inc = SequenceGenerator.sequenceIncrementor(rest, maxIndex);
+				} else {
+					rest[arity-2] = p.closedMark;
+					inc = SequenceGenerator.sequenceIncrementor(rest, maxIndex, p.closedMark);
+				} // end if-else ( a0 >= p.closedMark )
+			} // end if ( arity > 1 )
+			argIndices[0] = a0;
+			while (true) {
+				for ( int r = 1; r < arity; r++ ) argIndices[r] = rest[r-1];
+				if ( absorbing != null && absorbing.absorbs(argIndices) ) {
+					if ( inc == null || !inc.increment() ) break;
+					continue;
+				} // end if ( the value would be one of the arguments )
+				for ( int r = 0; r < arity; r++ ) {
+					if ( decoded[r] != argIndices[r] ) {
+						p.store.get(argIndices[r], args[r]);
+						decoded[r] = argIndices[r];
+						if ( images != null ) imgArgs[r] = images.get(argIndices[r]);
+					} // end if ( decoded[r] != argIndices[r] )
+				} // end for 0 <= r < arity
+				if ( opTable != null ) {
+					Horner.applyCoordinatewise(opTable, algSize, args, vRaw, power);
+				} else if ( product ) {
+					final int[] sizes = p.factorSizes;
+					for ( int j = 0; j < power; j++ ) {
+						final int[] table = tables[j];
+						if ( table != null ) {
+							final int size = sizes[j];
+							int index = args[arity-1][j];
+							for ( int r = arity-2; r >= 0; r-- ) index = index*size + args[r][j];
+							vRaw[j] = table[index];
+						} else {
+							for ( int r = 0; r < arity; r++ ) arg[r] = args[r][j];
+							vRaw[j] = fs[j].intValueAt(arg);
+						} // end if-else ( table != null )
+					} // end for 0 <= j < power
+				} else {
+					for ( int j = 0; j < power; j++ ) {
+						for ( int r = 0; r < arity; r++ ) arg[r] = args[r][j];
+						vRaw[j] = f.intValueAt(arg);
+					} // end for 0 <= j < power
+				} // end if-else ( opTable != null )
+				int img = -1;
+				if ( images != null ) {
+					if ( imgTable != null ) {
+						img = imgArgs[arity-1];
+						for ( int r = arity-2; r >= 0; r-- ) img = img*p.imgSize + imgArgs[r];
+						img = imgTable[img];
+					} else {
+						img = imgOp.intValueAt(imgArgs);
+					} // end if-else ( imgTable != null )
+				} // end if ( images != null )
+				final int index = p.store.add(vRaw);
+				if ( index >= 0 ) {
+					if ( images != null ) images.set(index, img);
+					newElement(index, opIndex, argIndices, vRaw);
+				} else if ( images != null ) {
+					final int old = -index-1;
+					int oldImg;
+					while ( (oldImg = images.get(old)) < 0 ) {
+						// it was just added by another worker, which has not set its image yet
+						if ( p.stop ) return;
+						Thread.yield();
+					} // end while ( the image of old is not known )
+					if ( oldImg != img ) {
+						p.failed(old, opIndex, argIndices);
+						return;
+					} // end if ( oldImg != img )
+				} // end if-else ( index >= 0 )
+				if ( inc == null || !inc.increment() ) break;
+			} // end while (true)
+		} // end for from <= a0 < to
+	} // end doItem(int, int, int, int[])
+
+	private void newElement(final int index, final int opIndex, final int[] argIndices, final int[] vRaw) {
+		final Pass p = pass;
+		if ( recordTerms ) {
+			final int need = provenanceSize + 2 + argIndices.length;
+			if ( need > provenance.length ) provenance = Arrays.copyOf(provenance, Math.max(need, 2*provenance.length));
+			provenance[provenanceSize++] = index;
+			provenance[provenanceSize++] = opIndex;
+			for ( int r = 0; r < argIndices.length; r++ ) provenance[provenanceSize++] = argIndices[r];
+		} // end if ( recordTerms )
+		if ( p.eltToFind != null && IntArray.equalIntArrays(vRaw, p.eltToFind) ) p.found(index);
+		if ( p.constraint != null && p.constraint.isSatisfiedBy(vRaw) ) p.found(index);
+		if ( p.maxSize > 0 && index + 1 >= p.maxSize ) p.stop();
+		if ( p.cardinality > 0 && index + 1 >= p.cardinality ) p.stop();
+	} // end newElement(int, int, int[], int[])
+} // end class SGClosePowerWorker
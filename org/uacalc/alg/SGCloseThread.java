@@ -36,6 +36,8 @@ public class SGCloseThread extends SGClosePowerThread {
 		HashMap<IntArray,Integer> morphism = null;
 		Equation failingEquation = null;
 		ReentrantLock opLock = null;
+		long chunkStart = 0;
+		long chunkApplications = 0;
 		while (true) {
 			if (this.isInterrupted()) {
 				setStatus(SAFE_STOP);
@@ -48,6 +50,8 @@ public class SGCloseThread extends SGClosePowerThread {
 					f=ops.get(tempChunk.opIndex);
 					opLock=opLocks.get(tempChunk.opIndex);
 					arity=f.arity();
+					chunkStart=System.nanoTime();
+					chunkApplications=0;
 					finalSegment=new int[indicesPerChunk];
 					su = new HashSet<IntArray>();
 					termMap = new HashMap<IntArray,Term>();
@@ -78,6 +82,7 @@ public class SGCloseThread extends SGClosePowerThread {
 			if (tempChunk!=null) {
 				if (tempChunk==STOP_COMMAND) break;
 				int[] argIndices = concatenateIntArrays(tempChunk.initialSegment,finalSegment);
+				chunkApplications++;
 				int[][] arg = new int[arity][];
 				for ( int i = 0; i < arity; i++ ) arg[i]=rawList.get(argIndices[i]);
 				opLock.lock();
@@ -114,8 +119,9 @@ public class SGCloseThread extends SGClosePowerThread {
 				} // end if (!collector.offer(presult))
 			} // end while (resultsQueue.size()>0)
 			if (tempChunk!=null && !inc.increment()) {
-				tempChunk=null;
 				SGClosePowerResult tempRes = new SGClosePowerResult(termMap,morphism,failingEquation);
+				tempRes.setWork(tempChunk.opIndex,chunkApplications,System.nanoTime()-chunkStart);
+				tempChunk=null;
 				if (!collector.offer(tempRes)) {
 					resultsQueue.add(tempRes);
 				} // end if (!collector.offer(termMap))
@@ -120,13 +120,7 @@ public class SubProductAlgebra extends GeneralAlgebra implements SmallAlgebra {
       }
     }
     else univ = productAlgebra.sgClose(gens);
-    size = univ.size();
-    univHashMap = new HashMap<IntArray,Integer>(size);
-    int k = 0;
-    for (Iterator<IntArray> it = univ.iterator(); it.hasNext(); k++) {
-      univHashMap.put(it.next(), new Integer(k));
-    }
-    universe = new HashSet(univ);
+    makeUniverseIndex();
     makeOperations();
   }
 
@@ -213,14 +207,30 @@ public class SubProductAlgebra extends GeneralAlgebra implements SmallAlgebra {
     productAlgebra = prod;
     this.gens = gens;
     univ = univList;
+    makeUniverseIndex();
+    makeOperations();
+  }
+
+  /**
+   * Set <tt>size</tt>, <tt>universe</tt> and the index of the elements
+   * from <tt>univ</tt>. If <tt>univ</tt> is a view of a 
+   * <tt>PackedTupleStore</tt>, as the closure of the generators is,
+   * the store's own hash index is used and the elements are not 
+   * copied into a HashMap unless <tt>getUniverseOrder</tt> asks for one.
+   */
+  protected void makeUniverseIndex() {
     size = univ.size();
+    if (univ instanceof PackedTupleStore.TupleList) {
+      univHashMap = null;
+      universe = ((PackedTupleStore.TupleList)univ).getStore().asSet();
+      return;
+    }
     univHashMap = new HashMap<IntArray,Integer>(size);
     int k = 0;
     for (Iterator<IntArray> it = univ.iterator(); it.hasNext(); k++) {
       univHashMap.put(it.next(), new Integer(k));
     }
     universe = new HashSet(univ);
-    makeOperations();
   }
 
   protected void makeOperations() {
@@ -375,6 +385,12 @@ public class SubProductAlgebra extends GeneralAlgebra implements SmallAlgebra {
   }
 
   public Map<IntArray,Integer> getUniverseOrder() {
+    if (univHashMap == null) {
+      univHashMap = new HashMap<IntArray,Integer>(size);
+      for (int k = 0; k < size; k++) {
+        univHashMap.put(univ.get(k), k);
+      }
+    }
     return univHashMap;
   }
 
@@ -410,6 +426,7 @@ public class SubProductAlgebra extends GeneralAlgebra implements SmallAlgebra {
 
   public int elementIndex(Object obj) {
     IntArray elem = (IntArray)obj;
+    if (univHashMap == null) return univ.indexOf(elem);
     return univHashMap.get(elem).intValue();
   }
 
@@ -4,6 +4,7 @@ import org.uacalc.alg.*;
 import org.uacalc.alg.sublat.*;
 import org.uacalc.alg.op.Operation;
 import org.uacalc.alg.op.OperationSymbol;
+import org.uacalc.alg.op.OperationWithDefaultValue;
 import org.uacalc.alg.op.SimilarityType;
 import org.uacalc.ui.tm.ProgressReport;
 import org.uacalc.util.*;
@@ -12,6 +13,9 @@ import org.uacalc.element.*;
 import org.uacalc.io.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.*;
 
 
@@ -78,9 +82,57 @@ public class CongruenceLattice implements Lattice {
   private javax.swing.JTable conTable;
 
   /** 
-   * A map from pairs [i,j] to the array representing Cg(i, j).
+   * Cg(i, j), for i < j, at <code>pairIndex(i, j)</code>, or null if it
+   * has not been computed yet. It is made by the first call to Cg and
+   * filled in as the congruences are computed, so threads may read it
+   * while others are adding to it.
    */
-  private HashMap<IntArray,Partition> principalCongruencesLookup = null;
+  private volatile AtomicReferenceArray<Partition> principalCongruencesLookup = null;
+
+  /**
+   * Cg only makes the lookup table if there are at most this many pairs;
+   * makePrincipals always does.
+   */
+  static final int MAX_CACHED_PAIRS = 1 << 22;
+
+  /**
+   * makePrincipals only uses more than one thread if there are at least
+   * this many pairs.
+   */
+  static final int MIN_PARALLEL_PAIRS = 1 << 12;
+
+  /**
+   * The number of pairs a thread of makePrincipals takes at a time.
+   */
+  static final int PAIRS_PER_TASK = 64;
+
+  /**
+   * The distinct basic translations x -> f(c_0, ..., x, ..., c_{k-1}),
+   * leaving out the constant ones and the identity, as maps of length 
+   * algSize one after another. Cg closes under these instead of going 
+   * through the operations. It is null until it is made, and stays null
+   * if there would be too many of them.
+   */
+  private volatile int[] translations = null;
+  private volatile boolean translationsTried = false;
+
+  /**
+   * The tables of the operations, with the default values filled in, 
+   * or null for an operation without a table. They are kept since the 
+   * total table of an OperationWithDefaultValue is a new copy each time.
+   */
+  private volatile int[][] operationTables = null;
+
+  /**
+   * The translations are not made if enumerating them would take more 
+   * than this many values of the operations ...
+   */
+  static final long MAX_TRANSLATION_WORK = 1L << 30;
+
+  /**
+   * ... or if the distinct ones would take more than this many ints.
+   */
+  static final int MAX_TRANSLATION_ENTRIES = 1 << 23;
   
   /**
    * A map from [i,j] to Tg(i, j).
@@ -626,12 +678,28 @@ public class CongruenceLattice implements Lattice {
   //public CongruenceLattice con() { return null; }
 
   public void makePrincipals(ProgressReport report) {
+    makePrincipals(report, 0);
+  }
+
+  /**
+   * Find the principal congruences using <code>numThreads</code> threads,
+   * or all available cores if it is 0. The pairs are split among the 
+   * threads, but the list of principal congruences, their order and 
+   * the pairs representing them are the same as with one thread.
+   */
+  public void makePrincipals(ProgressReport report, int numThreads) {
+    if (numThreads == 0) numThreads = Runtime.getRuntime().availableProcessors();
+    if (numThreads > 1 && (long)algSize * (algSize - 1) / 2 >= MIN_PARALLEL_PAIRS
+        && principalCongruencesLookup(true) != null) {
+      makePrincipalsParallel(report, numThreads);
+      return;
+    }
     if (report != null) report.addStartLine("finding principal congruences of " 
                                                         + getAlgebra().getName());
     HashMap<Partition,Partition> pcIdMap = new HashMap<Partition,Partition>();  // to keep equal congruences identical
     principalCongruences = new ArrayList<Partition>();
     //congruencesHash = new HashSet();
-    principalCongruencesLookup = new HashMap<IntArray,Partition>();
+    final AtomicReferenceArray<Partition> lookup = principalCongruencesLookup(true);
     principalCongruencesRep = new HashMap<Partition,IntArray>();
     for (int i = 0; i < algSize - 1; i++) {
       for (int j = i + 1; j < algSize; j++) {
@@ -639,7 +707,8 @@ public class CongruenceLattice implements Lattice {
           if (report != null) report.addEndingLine("cancelled ...");
           return;
         }
-        Partition partCong = makeCg(i, j, report);
+        Partition partCong = lookup == null ? null : lookup.get(pairIndex(i, j));
+        if (partCong == null) partCong = makeCg(i, j, report);
         if (pcIdMap.get(partCong) == null) {
           pcIdMap.put(partCong, partCong);
           principalCongruences.add(partCong);
@@ -649,7 +718,7 @@ public class CongruenceLattice implements Lattice {
         else {
           partCong = pcIdMap.get(partCong);
         }
-        principalCongruencesLookup.put(new IntArray(new int[] {i, j}), partCong);
+        if (lookup != null) lookup.set(pairIndex(i, j), partCong);
       }
     }
     sortByRank(principalCongruences);
@@ -657,6 +726,97 @@ public class CongruenceLattice implements Lattice {
                + getAlgebra().getName() + ": size = " + principalCongruences.size());
   }
 
+  /**
+   * The threads take blocks of pairs, in the order of 
+   * <code>pairIndex</code>, from a counter, each with its own array for
+   * computing Cg. Equal congruences are made identical through a 
+   * concurrent map, and the lookup table is filled in. Then the list 
+   * of principal congruences and their representing pairs are made 
+   * from the table in the same order as the serial version.
+   */
+  private void makePrincipalsParallel(ProgressReport report, final int numThreads) {
+    if (report != null) report.addStartLine("finding principal congruences of " 
+        + getAlgebra().getName() + " (" + numThreads + " threads)");
+    alg.makeOperationTables();  // so the threads only read the tables
+    translations();
+    final AtomicReferenceArray<Partition> lookup = principalCongruencesLookup(true);
+    final int numPairs = lookup.length();
+    final ConcurrentHashMap<Partition,Partition> canonical = 
+                                  new ConcurrentHashMap<Partition,Partition>();
+    final AtomicInteger nextPair = new AtomicInteger();
+    final ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    final List<Future<?>> futures = new ArrayList<Future<?>>(numThreads);
+    for (int t = 0; t < numThreads; t++) {
+      futures.add(pool.submit(new Runnable() {
+          public void run() {
+            final int[] scratch = new int[algSize];
+            while (!Thread.currentThread().isInterrupted()) {
+              final int start = nextPair.getAndAdd(PAIRS_PER_TASK);
+              if (start >= numPairs) return;
+              final int end = Math.min(numPairs, start + PAIRS_PER_TASK);
+              // the pair with index start
+              int b = (int)((1 + Math.sqrt(1 + 8.0 * start)) / 2);
+              while ((long)b * (b - 1) / 2 > start) b--;
+              while ((long)(b + 1) * b / 2 <= start) b++;
+              int a = start - pairIndex(0, b);
+              for (int k = start; k < end; k++) {
+                Partition part = lookup.get(k);
+                if (part == null) {
+                  part = makeCg(a, b, scratch, null);
+                  if (part == null) return;  // cancelled
+                  if (!canonical.containsKey(part)) {
+                    // part is a view of scratch, so keep a copy
+                    part = new BasicPartition(scratch.clone());
+                  }
+                }
+                final Partition old = canonical.putIfAbsent(part, part);
+                lookup.set(k, old == null ? part : old);
+                a++;
+                if (a == b) {
+                  a = 0;
+                  b++;
+                }
+              }
+            }
+          }
+        }));
+    }
+    pool.shutdown();
+    try {
+      while (!pool.awaitTermination(500, TimeUnit.MILLISECONDS)) {
+        if (report != null) report.setSize(canonical.size());
+      }
+      for (Future<?> f : futures) f.get();
+    }
+    catch (InterruptedException e) {
+      pool.shutdownNow();
+      Thread.currentThread().interrupt();
+      if (report != null) report.addEndingLine("cancelled ...");
+      return;
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException("finding the principal congruences failed", 
+                                 e.getCause());
+    }
+    principalCongruences = new ArrayList<Partition>();
+    principalCongruencesRep = new HashMap<Partition,IntArray>();
+    for (int i = 0; i < algSize - 1; i++) {
+      for (int j = i + 1; j < algSize; j++) {
+        final Partition partCong = lookup.get(pairIndex(i, j));
+        if (!principalCongruencesRep.containsKey(partCong)) {
+          principalCongruences.add(partCong);
+          principalCongruencesRep.put(partCong, new IntArray(new int[] {i, j}));
+        }
+      }
+    }
+    sortByRank(principalCongruences);
+    if (report != null) {
+      report.setSize(principalCongruences.size());
+      report.addEndingLine("principal congruences of " 
+               + getAlgebra().getName() + ": size = " + principalCongruences.size());
+    }
+  }
+
   public boolean universeFound() { return universe != null; }
 
   private boolean stopMakeUniverse = false;
@@ -713,12 +873,139 @@ public class CongruenceLattice implements Lattice {
    * Construct the universe. If this method is interupted, the whole
    * calculation starts over. We might change that if there is enough
    * demand.
+   * <p>
+   * Each join irreducible is joined with the congruences found so far.
+   * A congruence is known by the set of join irreducibles below it, 
+   * kept as bits, so a join which is already there is recognized from 
+   * its bits and no partition is made for it; the join is skipped 
+   * altogether when the join irreducible is already below.
    */
   public void makeUniverse(int maxSize, ProgressReport report) {
     final boolean stopIfBig = maxSize > 0 ? true : false;
     
     if (report != null) report.addStartLine("finding the universe of Con(" 
                                                      + getAlgebra().getName() + ")");
+    final List<Partition> jis = joinIrreducibles(report);
+    final int size = jis.size();
+    // each congruence is known by the set of join irreducibles below it,
+    // as a bit set; a join irreducible is principal, so it is below a 
+    // congruence exactly when its generating pair is.
+    final int words = (size + 31) >>> 5;
+    final int[] jiLeft = new int[size];
+    final int[] jiRight = new int[size];
+    for (int m = 0; m < size; m++) {
+      final IntArray pair = generatingPair(jis.get(m));
+      if (pair == null) {
+        makeUniversePlain(maxSize, report);
+        return;
+      }
+      jiLeft[m] = pair.get(0);
+      jiRight[m] = pair.get(1);
+    }
+    List<Partition> univ = new ArrayList<Partition>(jis);
+    // the bits of univ[i]; the index finds a congruence by its bits
+    final List<int[]> univBits = new ArrayList<int[]>(size);
+    final FingerprintIndex index = new FingerprintIndex(univBits);
+    for (Partition ji : jis) {
+      final int[] bits = new int[words];
+      final int[] arr = ji.toArray();
+      for (int m = 0; m < size; m++) {
+        if (BasicPartition.root(jiLeft[m], arr) == BasicPartition.root(jiRight[m], arr)) {
+          bits[m >>> 5] |= 1 << m;
+        }
+      }
+      univBits.add(bits);
+    }
+    final int[] scratch = new int[algSize];
+    final int[] label = new int[algSize];
+    final int[] scratchBits = new int[words];
+    sizeComputed = univ.size();
+    makeUniverseK = 0;
+    stopMakeUniverse = false;
+    Iterator<Partition> it = jis.iterator();
+    int k = 0;
+    while (it.hasNext()) {
+      k++;
+      //System.out.println("k = " + k);
+      if (Thread.currentThread().isInterrupted()) {
+        if (report != null) {
+          report.addEndingLine("Cancelled (" + univ.size() + " elements so far)");
+          return;
+        }
+      }
+      else {
+        if (report != null) {
+          report.addLine("pass " + k + " of " + size + ", size: " + univ.size());
+          report.setPass(k);
+          report.setSize(univ.size());
+        }
+      }
+      makeUniverseK++;
+      final int j = k - 1;
+      final int[] elemArr = it.next().toArray();
+      final int[] elemBits = univBits.get(j);
+      int n = univ.size();
+      for (int i = makeUniverseK; i < n; i++) {
+        if (stopMakeUniverse) return;
+        final int[] bits = univBits.get(i);
+        // if elem is below univ[i] the join is univ[i]
+        if ((bits[j >>> 5] & (1 << j)) != 0) continue;
+        // the join, in scratch, by joining the blocks of elem into univ[i]
+        System.arraycopy(univ.get(i).toArray(), 0, scratch, 0, algSize);
+        for (int x = 0; x < algSize; x++) {
+          if (elemArr[x] >= 0) {
+            final int r = find(x, scratch);
+            final int t = find(elemArr[x], scratch);
+            if (r != t) BasicPartition.joinBlocks(r, t, scratch);
+          }
+        }
+        for (int x = 0; x < algSize; x++) {
+          label[x] = find(x, scratch);
+        }
+        for (int w = 0; w < words; w++) {
+          scratchBits[w] = bits[w] | elemBits[w];
+        }
+        for (int m = 0; m < size; m++) {
+          if ((scratchBits[m >>> 5] & (1 << m)) != 0) continue;
+          if (label[jiLeft[m]] == label[jiRight[m]]) scratchBits[m >>> 5] |= 1 << m;
+        }
+        if (index.indexOf(scratchBits) < 0) {
+          int s = univ.size();
+          sizeComputed++;
+          if (stopIfBig && s >= maxSize) return;
+          if ( s % 10000 == 0) {
+            System.out.println("size is " + s);
+            //if (monitor != null) monitor.printlnToLog("size is " + s);
+          }
+          univBits.add(scratchBits.clone());
+          univ.add(new BasicPartition(scratch.clone()));
+        }
+      }
+    }
+    univ.add(0, zeroCong);
+    if (report != null) report.setSize(univ.size());
+    universe = new LinkedHashSet<Partition>(univ);
+    congruencesHash = new HashSet<Partition>(univ);
+    if (report != null) report.addEndingLine("|Con(" + getAlgebra().getName() + ")| = " + univ.size());
+  }
+
+  /**
+   * The root of <code>x</code> in the union find array 
+   * <code>part</code>, without compressing the path. The blocks are 
+   * joined by size, so the paths are short.
+   */
+  private static int find(int x, final int[] part) {
+    while (part[x] >= 0) x = part[x];
+    return x;
+  }
+
+  /**
+   * makeUniverse by joining the partitions, for when the join 
+   * irreducibles do not all have generating pairs.
+   */
+  private void makeUniversePlain(int maxSize, ProgressReport report) {
+    final boolean stopIfBig = maxSize > 0 ? true : false;
+    
     List<Partition> univ = new ArrayList<Partition>(joinIrreducibles(report));
     HashSet<Partition> hash = new HashSet<Partition>(joinIrreducibles());
     sizeComputed = univ.size();
@@ -944,13 +1231,43 @@ public class CongruenceLattice implements Lattice {
       a = b;
       b = c;
     }
-    if (principalCongruencesLookup != null) {
-      Partition p 
-         =  principalCongruencesLookup.get(new int[] {a, b});
-      if (p != null) return p;
-      return makeCg(a, b, report);
+    final AtomicReferenceArray<Partition> lookup = principalCongruencesLookup(false);
+    if (lookup == null) return makeCg(a, b, report);
+    final int k = pairIndex(a, b);
+    Partition p = lookup.get(k);
+    if (p != null) return p;
+    p = makeCg(a, b, report);
+    if (p == null) return null;  // cancelled
+    // if another thread got there first, use its copy so equal
+    // principal congruences stay identical
+    if (!lookup.compareAndSet(k, null, p)) return lookup.get(k);
+    return p;
+  }
+
+  /**
+   * The index of the pair (a, b), a < b, in the lookup table of the
+   * principal congruences: the pairs are ordered by b and then a.
+   */
+  static int pairIndex(int a, int b) {
+    return (int)((long)b * (b - 1) / 2) + a;
+  }
+
+  /**
+   * The lookup table of the principal congruences, made if need be, or
+   * null if there are too many pairs for it; if <code>always</code> is
+   * false the limit is <code>MAX_CACHED_PAIRS</code>.
+   */
+  private AtomicReferenceArray<Partition> principalCongruencesLookup(boolean always) {
+    AtomicReferenceArray<Partition> lookup = principalCongruencesLookup;
+    if (lookup != null) return lookup;
+    final long pairs = (long)algSize * (algSize - 1) / 2;
+    if (pairs > Integer.MAX_VALUE - 8 || (!always && pairs > MAX_CACHED_PAIRS)) return null;
+    synchronized (this) {
+      if (principalCongruencesLookup == null) {
+        principalCongruencesLookup = new AtomicReferenceArray<Partition>((int)pairs);
+      }
+      return principalCongruencesLookup;
     }
-    return makeCg(a, b, report);
   }
   
   /**
@@ -966,7 +1283,8 @@ public class CongruenceLattice implements Lattice {
   private Partition makeCg(Partition initPart, ProgressReport report) {
     int[] ans = new int[algSize];
     System.arraycopy(initPart.toArray(), 0, ans, 0, algSize); // copy the array of initPart to ans 
-    SimpleList pairs = SimpleList.EMPTY_LIST;
+    final int[] pairs = new int[2 * algSize];
+    int top = 0;
     int[][] blocks = initPart.getBlocks();
     final int numBlocks = blocks.length;
     //if (report != null) report.setPass(numBlocks - 1);
@@ -976,31 +1294,207 @@ public class CongruenceLattice implements Lattice {
       int r = blk[0];
       for (int j = 1; j < blk.length; j++) {
         //if (report != null) report.setSize(j);
-        pairs = pairs.cons(new int[] {r, blk[j]});
+        pairs[top++] = r;
+        pairs[top++] = blk[j];
       }
     }
-    return makeCgAux(ans, pairs, report);
+    return makeCgAux(ans, pairs, top, report);
   }
   
-  private Partition makeCgAux(int[] ans, SimpleList pairs, final ProgressReport report) {
-    while (!pairs.isEmpty()) {
-      if (report != null) report.setSize(pairs.size());
+  /**
+   * The distinct basic translations, made the first time they are 
+   * needed, or null if there are too many.
+   */
+  private int[] translations() {
+    if (translationsTried) return translations;
+    synchronized (this) {
+      if (!translationsTried) {
+        translations = makeTranslations();
+        translationsTried = true;
+      }
+      return translations;
+    }
+  }
+
+  /**
+   * The tables of the operations, made the first time they are needed.
+   */
+  private int[][] operationTables() {
+    int[][] tables = operationTables;
+    if (tables != null) return tables;
+    synchronized (this) {
+      if (operationTables == null) {
+        final List<Operation> ops = alg.operations();
+        tables = new int[ops.size()][];
+        for (int i = 0; i < tables.length; i++) {
+          final Operation f = ops.get(i);
+          tables[i] = f instanceof OperationWithDefaultValue 
+                ? ((OperationWithDefaultValue)f).getTotalTable() : f.getTable();
+        }
+        operationTables = tables;
+      }
+      return operationTables;
+    }
+  }
+
+  private int[] makeTranslations() {
+    final int n = algSize;
+    long work = 0;
+    for (Operation f : alg.operations()) {
+      long count = f.arity();  // the translations of f times n
+      for (int r = 0; r < f.arity() && count <= MAX_TRANSLATION_WORK; r++) {
+        count = count * n;
+      }
+      work += count;
+      if (work > MAX_TRANSLATION_WORK) return null;
+    }
+    final Set<IntArray> seen = new HashSet<IntArray>();
+    final List<int[]> maps = new ArrayList<int[]>();
+    final int[] map = new int[n];
+    final IntArray probe = new IntArray(map);
+    final int[][] tables = operationTables();
+    for (int i = 0; i < tables.length; i++) {
+      final Operation f = alg.operations().get(i);
+      final int arity = f.arity();
+      final int[] table = tables[i];
+      int stride = 1;
+      for (int index = 0; index < arity; index++) {
+        if (table != null) {
+          final int block = stride * n;
+          for (int hi = 0; hi < table.length; hi += block) {
+            for (int base = hi; base < hi + stride; base++) {
+              for (int x = 0; x < n; x++) {
+                map[x] = table[base + x * stride];
+              }
+              if (!addTranslation(map, probe, seen, maps)) return null;
+            }
+          }
+          stride = block;
+          continue;
+        }
+        int[] arg = new int[arity];
+        while (arg != null) {
+          for (int x = 0; x < n; x++) {
+            arg[index] = x;
+            map[x] = f.intValueAt(arg);
+          }
+          if (!addTranslation(map, probe, seen, maps)) return null;
+          arg = incrementArg(arg, index);
+        }
+      }
+    }
+    final int[] ans = new int[maps.size() * n];
+    for (int t = 0; t < maps.size(); t++) {
+      System.arraycopy(maps.get(t), 0, ans, t * n, n);
+    }
+    return ans;
+  }
+
+  /**
+   * Add a copy of <code>map</code>, which <code>probe</code> wraps, to 
+   * <code>maps</code> unless it is constant, the identity or already 
+   * there. Gives false if that makes too many.
+   */
+  private boolean addTranslation(final int[] map, IntArray probe, 
+                                 Set<IntArray> seen, List<int[]> maps) {
+    boolean constant = true;
+    boolean identity = true;
+    for (int x = 0; x < map.length; x++) {
+      if (map[x] != map[0]) constant = false;
+      if (map[x] != x) identity = false;
+    }
+    if (constant || identity || seen.contains(probe)) return true;
+    final int[] copy = map.clone();
+    seen.add(new IntArray(copy));
+    maps.add(copy);
+    return (long)maps.size() * algSize <= MAX_TRANSLATION_ENTRIES;
+  }
+
+  /**
+   * Close <code>ans</code> under the operations. The pairs still to be
+   * pushed through the operations are kept on a stack in 
+   * <code>pairs</code>, the first <code>top</code> entries of which are
+   * given. Each pair on it joined two blocks, so at most 
+   * <code>algSize - 1</code> pairs are ever on it and 
+   * <code>2 * algSize</code> entries are enough.
+   * <p>
+   * For an operation with a table, the unary polynomials got by fixing
+   * all but one argument are read straight from the table: with the 
+   * others fixed, moving the argument at <code>index</code> moves the 
+   * table index by multiples of <code>algSize<sup>index</sup></code>.
+   * Other operations are evaluated, reusing one argument array each.
+   * If the distinct basic translations have been made, they are used 
+   * instead of the operations.
+   */
+  private Partition makeCgAux(final int[] ans, final int[] pairs, int top,
+                              final ProgressReport report) {
+    final int n = algSize;
+    final int[] trans = translations();
+    final List<Operation> ops = alg.operations();
+    final int k = ops.size();
+    // only needed when going through the operations
+    int[] arities = null;
+    int[][] tables = null;
+    int[][] args = null;
+    if (trans == null) {
+      tables = operationTables();
+      arities = new int[k];
+      args = new int[k][];
+      for (int i = 0; i < k; i++) {
+        arities[i] = ops.get(i).arity();
+        if (tables[i] == null) args[i] = new int[arities[i]];
+      }
+    }
+    while (top > 0) {
+      if (report != null) report.setSize(top / 2);
       if (Thread.currentThread().isInterrupted()) {
         if (report != null) report.addEndingLine("cancelled ...");
         return null;
       }
-      int x = ((int[])pairs.first())[0];
-      int y = ((int[])pairs.first())[1];
-      pairs = pairs.rest();
-      for (Operation f : alg.operations()) {
-        int arity = f.arity();
-        int[] arg = new int[arity];
-        int[] arg2 = arg;
-        for (int index = 0; index < arity; index++) {
-          arg = arg2;
-          for (int k = 0; k < arity; k++ ) {
-            arg[k] = 0;
+      final int y = pairs[--top];
+      final int x = pairs[--top];
+      if (trans != null) {
+        for (int t = 0; t < trans.length; t += n) {
+          final int r = BasicPartition.root(trans[t + x], ans);
+          final int s = BasicPartition.root(trans[t + y], ans);
+          if (r != s) {
+            BasicPartition.joinBlocks(r, s, ans);
+            pairs[top++] = r;
+            pairs[top++] = s;
           }
+        }
+        continue;
+      }
+      for (int i = 0; i < k; i++) {
+        final int arity = arities[i];
+        final int[] table = tables[i];
+        if (table != null) {
+          int stride = 1;
+          for (int index = 0; index < arity; index++) {
+            final int block = stride * n;
+            final int dx = x * stride;
+            final int dy = y * stride;
+            // base runs over the table indices with a 0 at index
+            for (int hi = 0; hi < table.length; hi += block) {
+              final int end = hi + stride;
+              for (int base = hi; base < end; base++) {
+                final int r = BasicPartition.root(table[base + dx], ans);
+                final int s = BasicPartition.root(table[base + dy], ans);
+                if (r != s) {
+                  BasicPartition.joinBlocks(r, s, ans);
+                  pairs[top++] = r;
+                  pairs[top++] = s;
+                }
+              }
+            }
+            stride = block;
+          }
+          continue;
+        }
+        final Operation f = ops.get(i);
+        for (int index = 0; index < arity; index++) {
+          int[] arg = args[i];
+          Arrays.fill(arg, 0);
           while (arg != null) {
             arg[index] = x;
             int r = BasicPartition.root(f.intValueAt(arg), ans);
@@ -1008,7 +1502,8 @@ public class CongruenceLattice implements Lattice {
             int s = BasicPartition.root(f.intValueAt(arg), ans);
             if (r != s) {
               BasicPartition.joinBlocks(r, s, ans);
-              pairs = pairs.cons(new int[] {r, s});
+              pairs[top++] = r;
+              pairs[top++] = s;
             }
             arg = incrementArg(arg, index);
           }
@@ -1023,16 +1518,25 @@ public class CongruenceLattice implements Lattice {
    * This assumes a < b.
    */
   private Partition makeCg(int a, int b, final ProgressReport report) {
+    return makeCg(a, b, new int[algSize], report);
+  }
+
+  /**
+   * This assumes a < b. Cg(a, b) is computed in <code>part</code>, which
+   * the answer is a view of.
+   */
+  private Partition makeCg(int a, int b, final int[] part, 
+                           final ProgressReport report) {
 //    System.out.println("a and b: " + a + ", " + b);
-    int[] part = new int[algSize];
     for (int i = 0; i < algSize; i++ ) {
       part[i] = -1;
     }
     part[a] = -2;
     part[b] = a;
-    SimpleList pairs = SimpleList.EMPTY_LIST;
-    pairs = pairs.cons(new int[] {a, b});
-    return makeCgAux(part, pairs, report);
+    final int[] pairs = new int[2 * algSize];
+    pairs[0] = a;
+    pairs[1] = b;
+    return makeCgAux(part, pairs, 2, report);
   }
   
   
@@ -1083,8 +1587,8 @@ public class CongruenceLattice implements Lattice {
    * @return
    */
   public BinaryRelation Tg(int a, int b) {
-    if (principalCongruencesLookup != null) {
-      BinaryRelation rel =  principalTolerancesLookup.get(new int[] {a, b});
+    if (principalTolerancesLookup != null) {
+      BinaryRelation rel =  principalTolerancesLookup.get(new IntArray(new int[] {a, b}));
       if (rel != null) return rel;
     }
     final BigProductAlgebra prod = new BigProductAlgebra(getAlgebra(), 2);
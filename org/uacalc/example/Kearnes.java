@@ -569,7 +569,7 @@ System.out.println("jonReduct ops " + jonReduct.operations());
     gens.add(g0);
     gens.add(g1);
     gens.add(g2);
-    sub = alg0sq.sgClose(gens);
+    sub = new ArrayList(alg0sq.sgClose(gens));
     Collections.sort(sub, c);
     for (Iterator it = sub.iterator(); it.hasNext(); ) {
       System.out.println(it.next());
@@ -41,8 +41,9 @@ public class MembershipTester {
   public static void main(String[] args) throws IOException, BadAlgebraFileException {
     SmallAlgebra alg0 = org.uacalc.io.AlgebraIO.readAlgebraFile(alg0File);
     SmallAlgebra alg1 = org.uacalc.io.AlgebraIO.readAlgebraFile(alg1File);
-    // The third argument below is a generating set of alg1.
-    Equation eq = FreeAlgebra.findEquationOfAnotB(alg0, alg1, alg1Generators);
+    // The third argument below is a generating set of alg1. The last one
+    // is the number of threads to close with; 0 uses all the cores.
+    Equation eq = FreeAlgebra.findEquationOfAnotB(alg0, alg1, alg1Generators, null, 0);
     System.out.println("eq is\n" + eq);
     if (eq != null) {  // if eq == null, alg1 is in V(alg0), 
                        // or at least the subalgebra generated by the generators is.
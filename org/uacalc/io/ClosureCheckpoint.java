@@ -0,0 +1,229 @@
+package org.uacalc.io;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import org.uacalc.util.IntArray;
+import org.uacalc.terms.*;
+import org.uacalc.alg.op.OperationSymbol;
+
+/**
+ * A snapshot of a subuniverse closure taken between two passes, so a long closure can be
+ * resumed after it is stopped. It holds the elements found so far, how far they are closed,
+ * the terms of the elements and the partial homomorphism, if there are any.
+ * <p>
+ * The file is binary. The elements are written with 1, 2 or 4 bytes per coordinate, depending
+ * on the largest coordinate, and the terms as a DAG: each distinct subterm is written once,
+ * as a variable name or an operation symbol with the numbers of its children, and each element
+ * gets the number of its term. Since the term of a new element is made from the terms of 
+ * earlier elements this is about the size of the element list, not of the terms.
+ * @author Jonah Horowitz
+ */
+public class ClosureCheckpoint {
+	private static final int MAGIC = 0x55414343; // "UACC"
+	private static final int VERSION = 1;
+	private static final byte VARIABLE = 0;
+	private static final byte OPERATION = 1;
+	
+	private final List<IntArray> elements;
+	private final int closedMark;
+	private final int pass;
+	private final Map<IntArray,Term> termMap;
+	private final Map<IntArray,Integer> homomorphism;
+	
+	/**
+	 * @param elements the elements found so far, in order
+	 * @param closedMark the elements before this have been closed under the operations
+	 * @param pass the number of passes done
+	 * @param termMap the terms of the elements, or null
+	 * @param homomorphism the partial homomorphism on the elements, or null
+	 */
+	public ClosureCheckpoint(List<IntArray> elements, int closedMark, int pass, Map<IntArray,Term> termMap, Map<IntArray,Integer> homomorphism) {
+		this.elements=elements;
+		this.closedMark=closedMark;
+		this.pass=pass;
+		this.termMap=termMap;
+		this.homomorphism=homomorphism;
+	} // end constructor(List<IntArray>, int, int, Map<IntArray,Term>, Map<IntArray,Integer>)
+	
+	public List<IntArray> getElements() { return elements; }
+	public int getClosedMark() { return closedMark; }
+	public int getPass() { return pass; }
+	public Map<IntArray,Term> getTermMap() { return termMap; }
+	public Map<IntArray,Integer> getHomomorphism() { return homomorphism; }
+	
+	/**
+	 * Writes this checkpoint to <code>file</code>. It is written to a temporary file first and
+	 * then moved over <code>file</code> in one step, so if writing fails the last checkpoint in 
+	 * <code>file</code> is still good. Where the file system cannot move atomically the old
+	 * checkpoint is replaced by an ordinary move.
+	 */
+	public void write(File file) throws IOException {
+		final File tmp = new File(file.getPath()+".tmp");
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			write(out);
+		} finally {
+			out.close();
+		} // end try-finally
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch ( AtomicMoveNotSupportedException e ) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} // end try-catch AtomicMoveNotSupportedException
+	} // end write(File)
+	
+	public void write(DataOutputStream out) throws IOException {
+		final int size = elements.size();
+		final int width = size==0?0:elements.get(0).universeSize();
+		int max = 0;
+		for ( IntArray ia : elements ) {
+			for ( int j = 0; j < width; j++ ) if ( ia.get(j)>max ) max=ia.get(j);
+		} // end for ( IntArray ia : elements )
+		final int bytes = max<=0xff?1:(max<=0xffff?2:4);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(size);
+		out.writeInt(width);
+		out.writeInt(closedMark);
+		out.writeInt(pass);
+		out.writeByte(bytes);
+		for ( IntArray ia : elements ) {
+			for ( int j = 0; j < width; j++ ) {
+				switch (bytes) {
+					case 1: out.writeByte(ia.get(j)); break;
+					case 2: out.writeShort(ia.get(j)); break;
+					default: out.writeInt(ia.get(j));
+				} // end switch (bytes)
+			} // end for 0 <= j < width
+		} // end for ( IntArray ia : elements )
+		out.writeBoolean(termMap!=null);
+		if ( termMap!=null ) writeTerms(out);
+		out.writeBoolean(homomorphism!=null);
+		if ( homomorphism!=null ) {
+			for ( IntArray ia : elements ) {
+				final Integer value = homomorphism.get(ia);
+				out.writeInt(value==null?-1:value.intValue());
+			} // end for ( IntArray ia : elements )
+		} // end if ( homomorphism!=null )
+		out.flush();
+	} // end write(DataOutputStream)
+	
+	private void writeTerms(DataOutputStream out) throws IOException {
+		// number the distinct subterms so that children come before their parents
+		final Map<Term,Integer> nodes = new IdentityHashMap<Term,Integer>();
+		final List<Term> order = new ArrayList<Term>();
+		final Map<OperationSymbol,Integer> symbolIndices = new HashMap<OperationSymbol,Integer>();
+		final List<OperationSymbol> symbols = new ArrayList<OperationSymbol>();
+		final int[] termIndices = new int[elements.size()];
+		int k = 0;
+		for ( IntArray ia : elements ) {
+			final Term t = termMap.get(ia);
+			termIndices[k++] = t==null?-1:number(t, nodes, order, symbolIndices, symbols);
+		} // end for ( IntArray ia : elements )
+		out.writeInt(symbols.size());
+		for ( OperationSymbol sym : symbols ) {
+			out.writeUTF(sym.name());
+			out.writeInt(sym.arity());
+		} // end for ( OperationSymbol sym : symbols )
+		out.writeInt(order.size());
+		for ( Term t : order ) {
+			if ( t.isaVariable() ) {
+				out.writeByte(VARIABLE);
+				out.writeUTF(((Variable)t).getName());
+			} else {
+				out.writeByte(OPERATION);
+				out.writeInt(symbolIndices.get(t.leadingOperationSymbol()).intValue());
+				final List<Term> children = t.getChildren();
+				out.writeInt(children==null?0:children.size());
+				if ( children!=null ) for ( Term child : children ) out.writeInt(nodes.get(child).intValue());
+			} // end if-else ( t.isaVariable() )
+		} // end for ( Term t : order )
+		for ( int i = 0; i < termIndices.length; i++ ) out.writeInt(termIndices[i]);
+	} // end writeTerms(DataOutputStream)
+	
+	private static int number(Term t, Map<Term,Integer> nodes, List<Term> order, Map<OperationSymbol,Integer> symbolIndices, List<OperationSymbol> symbols) {
+		final Integer known = nodes.get(t);
+		if ( known!=null ) return known.intValue();
+		if ( !t.isaVariable() ) {
+			final List<Term> children = t.getChildren();
+			if ( children!=null ) for ( Term child : children ) number(child, nodes, order, symbolIndices, symbols);
+			final OperationSymbol sym = t.leadingOperationSymbol();
+			if ( !symbolIndices.containsKey(sym) ) {
+				symbolIndices.put(sym, symbols.size());
+				symbols.add(sym);
+			} // end if ( !symbolIndices.containsKey(sym) )
+		} // end if ( !t.isaVariable() )
+		final int index = order.size();
+		nodes.put(t, index);
+		order.add(t);
+		return index;
+	} // end number(Term, Map<Term,Integer>, List<Term>, Map<OperationSymbol,Integer>, List<OperationSymbol>)
+	
+	public static ClosureCheckpoint read(File file) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		} // end try-finally
+	} // end read(File)
+	
+	public static ClosureCheckpoint read(DataInputStream in) throws IOException {
+		if ( in.readInt()!=MAGIC ) throw new IOException("not a closure checkpoint");
+		final int version = in.readInt();
+		if ( version!=VERSION ) throw new IOException("unknown checkpoint version "+version);
+		final int size = in.readInt();
+		final int width = in.readInt();
+		final int closedMark = in.readInt();
+		final int pass = in.readInt();
+		final int bytes = in.readByte();
+		final List<IntArray> elements = new ArrayList<IntArray>(size);
+		for ( int i = 0; i < size; i++ ) {
+			final int[] raw = new int[width];
+			for ( int j = 0; j < width; j++ ) {
+				switch (bytes) {
+					case 1: raw[j]=in.readUnsignedByte(); break;
+					case 2: raw[j]=in.readUnsignedShort(); break;
+					default: raw[j]=in.readInt();
+				} // end switch (bytes)
+			} // end for 0 <= j < width
+			elements.add(new IntArray(raw));
+		} // end for 0 <= i < size
+		Map<IntArray,Term> termMap = null;
+		if ( in.readBoolean() ) {
+			final int numSymbols = in.readInt();
+			final OperationSymbol[] symbols = new OperationSymbol[numSymbols];
+			for ( int i = 0; i < numSymbols; i++ ) {
+				final String name = in.readUTF();
+				symbols[i] = new OperationSymbol(name, in.readInt());
+			} // end for 0 <= i < numSymbols
+			final Term[] nodes = new Term[in.readInt()];
+			for ( int i = 0; i < nodes.length; i++ ) {
+				if ( in.readByte()==VARIABLE ) {
+					nodes[i] = new VariableImp(in.readUTF());
+				} else {
+					final OperationSymbol sym = symbols[in.readInt()];
+					final int n = in.readInt();
+					final List<Term> children = new ArrayList<Term>(n);
+					for ( int r = 0; r < n; r++ ) children.add(nodes[in.readInt()]);
+					nodes[i] = new NonVariableTerm(sym, children);
+				} // end if-else ( in.readByte()==VARIABLE )
+			} // end for 0 <= i < nodes.length
+			termMap = new HashMap<IntArray,Term>(2*size);
+			for ( int i = 0; i < size; i++ ) {
+				final int node = in.readInt();
+				if ( node>=0 ) termMap.put(elements.get(i), nodes[node]);
+			} // end for 0 <= i < size
+		} // end if ( in.readBoolean() )
+		Map<IntArray,Integer> homomorphism = null;
+		if ( in.readBoolean() ) {
+			homomorphism = new HashMap<IntArray,Integer>(2*size);
+			for ( int i = 0; i < size; i++ ) {
+				final int value = in.readInt();
+				if ( value>=0 ) homomorphism.put(elements.get(i), value);
+			} // end for 0 <= i < size
+		} // end if ( in.readBoolean() )
+		return new ClosureCheckpoint(elements, closedMark, pass, termMap, homomorphism);
+	} // end read(DataInputStream)
+} // end class ClosureCheckpoint
@@ -0,0 +1,174 @@
+/* TermProvenance.java */
+
+package org.uacalc.terms;
+
+import java.util.*;
+import org.uacalc.alg.op.OperationSymbol;
+import org.uacalc.util.IntArray;
+
+/**
+ * A compact record of how each element of a closure was found, used by
+ * the closure routines in place of a <code>Map</code> from the elements
+ * to their terms.
+ * <p>
+ * The elements are referred to by their index in the closure. For an
+ * element found by applying an operation the index of the operation
+ * and the indices of the arguments are kept in <code>int</code> arrays;
+ * only the elements we start with, like the generators, have a
+ * <code>Term</code>. The term of an element is only made when it is
+ * asked for, by {@link #getTerm(int)}, and the terms made are cached, in
+ * an array indexed by the elements, so that common subterms are shared.
+ *
+ * @author Ralph Freese
+ */
+public class TermProvenance {
+
+  private static final int GIVEN = -1;
+
+  private final OperationSymbol[] symbols;
+  // ops[i] is the index of the operation giving element i or GIVEN.
+  private int[] ops;
+  // the arguments of element i are args[argStarts[i]], ...
+  private int[] argStarts;
+  private int[] args;
+  private int size = 0;
+  private int argsSize = 0;
+  // terms[i] is the term of element i, if it has been made or given.
+  private Term[] terms;
+
+  /**
+   * @param symbols  the operation symbols, in the order of the operation
+   *                 indices used in {@link #add(int, int[])}
+   */
+  public TermProvenance(OperationSymbol[] symbols, int expectedSize) {
+    this.symbols = symbols;
+    final int n = Math.max(expectedSize, 16);
+    ops = new int[n];
+    argStarts = new int[n];
+    terms = new Term[n];
+    args = new int[2 * n];
+  }
+
+  public final int size() { return size; }
+
+  private void ensureCapacity(int arity) {
+    if (size == ops.length) {
+      final int n = 2 * ops.length;
+      ops = Arrays.copyOf(ops, n);
+      argStarts = Arrays.copyOf(argStarts, n);
+      terms = Arrays.copyOf(terms, n);
+    }
+    if (argsSize + arity > args.length) {
+      args = Arrays.copyOf(args, Math.max(2 * args.length, argsSize + arity));
+    }
+  }
+
+  /**
+   * Record an element whose term is known, like a generator or a constant.
+   *
+   * @return the index of the element
+   */
+  public int addGiven(Term term) {
+    ensureCapacity(0);
+    ops[size] = GIVEN;
+    argStarts[size] = argsSize;
+    terms[size] = term;
+    return size++;
+  }
+
+  /**
+   * Record an element found by applying operation <code>opIndex</code> to
+   * the elements with indices <code>argIndices</code>, which are copied.
+   *
+   * @return the index of the element
+   */
+  public int add(int opIndex, int[] argIndices) {
+    final int arity = argIndices.length;
+    ensureCapacity(arity);
+    ops[size] = opIndex;
+    argStarts[size] = argsSize;
+    System.arraycopy(argIndices, 0, args, argsSize, arity);
+    argsSize += arity;
+    return size++;
+  }
+
+  /**
+   * The index of the operation giving element <code>index</code>, or -1
+   * if its term was given.
+   */
+  public final int operationIndex(int index) {
+    return ops[index];
+  }
+
+  /**
+   * The index of argument <code>r</code> of the operation giving
+   * element <code>index</code>.
+   */
+  public final int argument(int index, int r) {
+    return args[argStarts[index] + r];
+  }
+
+  /**
+   * The term of element <code>index</code>, or null if it was added with
+   * a null term.
+   */
+  public Term getTerm(int index) {
+    final Term known = terms[index];
+    if (known != null || ops[index] == GIVEN) return known;
+    final OperationSymbol sym = symbols[ops[index]];
+    final int arity = sym.arity();
+    final List<Term> children = new ArrayList<Term>(arity);
+    for (int r = 0; r < arity; r++) {
+      // the arguments were found before, so this terminates.
+      children.add(getTerm(argument(index, r)));
+    }
+    final Term term = new NonVariableTerm(sym, children);
+    terms[index] = term;
+    return term;
+  }
+
+  /**
+   * A read only <code>Map</code> view from the elements to their terms.
+   * The terms are made as they are asked for.
+   *
+   * @param elements  the elements, in the order of their indices; its
+   *                  <code>indexOf</code> should be fast
+   */
+  public Map<IntArray,Term> asTermMap(final List<IntArray> elements) {
+    return new AbstractMap<IntArray,Term>() {
+        public Term get(Object key) {
+          final int index = elements.indexOf(key);
+          if (index < 0 || index >= size) return null;
+          return getTerm(index);
+        }
+        public boolean containsKey(Object key) {
+          final int index = elements.indexOf(key);
+          return index >= 0 && index < size;
+        }
+        public int size() { return size; }
+        public Set<Map.Entry<IntArray,Term>> entrySet() {
+          return new AbstractSet<Map.Entry<IntArray,Term>>() {
+              public int size() { return size; }
+              public Iterator<Map.Entry<IntArray,Term>> iterator() {
+                return new Iterator<Map.Entry<IntArray,Term>>() {
+                    int index = 0;
+                    public boolean hasNext() { return index < size; }
+                    public Map.Entry<IntArray,Term> next() {
+                      if (index >= size) throw new NoSuchElementException();
+                      final Map.Entry<IntArray,Term> e =
+                        new AbstractMap.SimpleImmutableEntry<IntArray,Term>(
+                                     elements.get(index), getTerm(index));
+                      index++;
+                      return e;
+                    }
+                    public void remove() {
+                      throw new UnsupportedOperationException();
+                    }
+                  };
+              }
+            };
+        }
+      };
+  }
+
+}
@@ -0,0 +1,179 @@
+/* ConcurrentTupleStore.java */
+
+package org.uacalc.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of tuples of a fixed width which several threads can add to
+ * at once, together with a log giving each tuple a global index in
+ * the order it was added.
+ * <p>
+ * The tuples are split by their hash into a number of stripes, each
+ * a {@link PackedTupleStore} guarded by its own lock, so threads adding
+ * different tuples rarely wait on each other. The global index of a
+ * tuple is taken from an atomic counter when it is added and the log
+ * records which stripe, and where in it, the tuple with a given global
+ * index is.
+ * <p>
+ * Reading a tuple by its index does not lock. It is safe for tuples
+ * whose index was published to the reader, for example tuples added
+ * before the reading thread was started or joined. The closure
+ * routines only read the elements of earlier passes while adding,
+ * so this is all they need.
+ *
+ * @author Ralph Freese
+ */
+public class ConcurrentTupleStore {
+
+  static final int STRIPE_BITS = 6;
+  static final int STRIPES = 1 << STRIPE_BITS;
+  static final int LOCAL_BITS = 31 - STRIPE_BITS;
+  static final int LOCAL_MASK = (1 << LOCAL_BITS) - 1;
+
+  static final int LOG_SHIFT = 16;
+  static final int LOG_MASK = (1 << LOG_SHIFT) - 1;
+
+  private final int width;
+  private final PackedTupleStore[] stripes;
+  // globals[s] maps the local index in stripe s to the global index.
+  private final int[][] globals;
+  private final AtomicInteger size = new AtomicInteger();
+
+  // the log: stripe << LOCAL_BITS | local index, by global index.
+  private volatile int[][] log = new int[16][];
+  private final Object logLock = new Object();
+
+  /**
+   * A store for tuples of length <code>width</code> whose coordinates
+   * lie in <code>{0, ..., maxValue}</code>.
+   */
+  public ConcurrentTupleStore(int width, int expectedSize, int maxValue) {
+    this.width = width;
+    stripes = new PackedTupleStore[STRIPES];
+    globals = new int[STRIPES][];
+    final int perStripe = expectedSize / STRIPES + 1;
+    for (int s = 0; s < STRIPES; s++) {
+      stripes[s] = PackedTupleStore.create(width, perStripe, maxValue);
+      globals[s] = new int[16];
+    }
+  }
+
+  public final int width() { return width; }
+
+  /**
+   * The number of tuples added so far. While other threads are adding
+   * this may count tuples which cannot be read yet.
+   */
+  public final int size() { return size.get(); }
+
+  private int logEntry(int index) {
+    return log[index >>> LOG_SHIFT][index & LOG_MASK];
+  }
+
+  private void setLogEntry(int index, int entry) {
+    final int c = index >>> LOG_SHIFT;
+    int[][] lg = log;
+    if (c >= lg.length || lg[c] == null) {
+      synchronized (logLock) {
+        lg = log;
+        if (c >= lg.length) lg = Arrays.copyOf(lg, Math.max(2 * lg.length, c + 1));
+        if (lg[c] == null) lg[c] = new int[LOG_MASK + 1];
+        log = lg;
+      }
+    }
+    lg[c][index & LOG_MASK] = entry;
+  }
+
+  /**
+   * The value of coordinate <code>j</code> of the tuple with global index
+   * <code>index</code>.
+   */
+  public final int get(int index, int j) {
+    final int e = logEntry(index);
+    return stripes[e >>> LOCAL_BITS].get(e & LOCAL_MASK, j);
+  }
+
+  /**
+   * Copy the tuple with global index <code>index</code> into
+   * <code>dest</code>.
+   */
+  public final int[] get(int index, int[] dest) {
+    final int e = logEntry(index);
+    return stripes[e >>> LOCAL_BITS].get(e & LOCAL_MASK, dest);
+  }
+
+  public final IntArray getIntArray(int index) {
+    return new IntArray(get(index, new int[width]));
+  }
+
+  /**
+   * Add a tuple if it is not already in the store. This may be called
+   * by several threads at once.
+   *
+   * @param tuple  an array of length <code>width</code>; it is copied
+   *
+   * @return the global index of the new tuple, or, if it was already
+   *         here, <code>-(index + 1)</code> where index is its index.
+   */
+  public final int add(final int[] tuple) {
+    final int s = PackedTupleStore.hash(tuple) >>> (32 - STRIPE_BITS);
+    final PackedTupleStore stripe = stripes[s];
+    synchronized (stripe) {
+      final int local = stripe.add(tuple);
+      if (local < 0) return -(globals[s][-local - 1] + 1);
+      if (local > LOCAL_MASK) {
+        throw new IllegalStateException("too many elements in one stripe");
+      }
+      final int index = size.getAndIncrement();
+      if (local >= globals[s].length) {
+        globals[s] = Arrays.copyOf(globals[s], 2 * globals[s].length);
+      }
+      globals[s][local] = index;
+      setLogEntry(index, (s << LOCAL_BITS) | local);
+      return index;
+    }
+  }
+
+  /**
+   * The global index of <code>tuple</code> or -1 if it is not here.
+   */
+  public final int indexOf(final int[] tuple) {
+    if (tuple.length != width) return -1;
+    final int s = PackedTupleStore.hash(tuple) >>> (32 - STRIPE_BITS);
+    final PackedTupleStore stripe = stripes[s];
+    synchronized (stripe) {
+      final int local = stripe.indexOf(tuple);
+      return local < 0 ? -1 : globals[s][local];
+    }
+  }
+
+  /**
+   * A read only <code>List</code> view of the tuples in the order of
+   * their global indices. It should only be used once no thread is
+   * adding.
+   */
+  public List<IntArray> asList() {
+    return new AbstractList<IntArray>() {
+        public IntArray get(int index) {
+          if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+          }
+          return getIntArray(index);
+        }
+        public int size() { return ConcurrentTupleStore.this.size(); }
+        public int indexOf(Object obj) {
+          if (!(obj instanceof IntArray)) return -1;
+          return ConcurrentTupleStore.this.indexOf(((IntArray)obj).getArray());
+        }
+        public int lastIndexOf(Object obj) {
+          return indexOf(obj);
+        }
+        public boolean contains(Object obj) {
+          return indexOf(obj) >= 0;
+        }
+      };
+  }
+
+}
@@ -0,0 +1,107 @@
+/* ConstraintPlan.java */
+
+package org.uacalc.util;
+
+import java.util.*;
+
+/**
+ * A blocks and values constraint, as in
+ * {@link IntArray#satisfiesConstraint(int[][], int[][])}, compiled into
+ * a flat list of coordinate checks so that testing a tuple does no
+ * more than the checks it fails on.
+ * <p>
+ * Each block becomes the checks that its first coordinate equals each of
+ * the others and each value a check that a coordinate has that value.
+ * The checks start with the values, which usually fail soonest. Each
+ * check counts how often it rejects a tuple and {@link #reorder()},
+ * called between the passes of a closure, moves the checks that
+ * rejected the most to the front; so after the first pass almost every
+ * tuple is rejected by the first check it meets.
+ * <p>
+ * Several threads may test tuples at once; they may then lose some of
+ * the counts, which only makes the order a little worse.
+ * <code>reorder</code> should only be called when no thread is testing.
+ *
+ * @author Ralph Freese
+ */
+public final class ConstraintPlan {
+
+  // check k is: tuple[left[k]] == tuple[right[k]] if right[k] >= 0,
+  // and tuple[left[k]] == -right[k] - 1 otherwise.
+  private final int[] left;
+  private final int[] right;
+  private final int[] failures;
+
+  /**
+   * @param blocks  the blocks the tuple must be constant on
+   * @param values  pairs [i, v] saying coordinate i must be v, or null
+   */
+  public ConstraintPlan(int[][] blocks, int[][] values) {
+    final List<int[]> checks = new ArrayList<int[]>();
+    if (values != null) {
+      for (int i = 0; i < values.length; i++) {
+        checks.add(new int[] {values[i][0], -values[i][1] - 1});
+      }
+    }
+    if (blocks != null) {
+      for (int i = 0; i < blocks.length; i++) {
+        final int[] block = blocks[i];
+        for (int j = 1; j < block.length; j++) {
+          checks.add(new int[] {block[0], block[j]});
+        }
+      }
+    }
+    final int n = checks.size();
+    left = new int[n];
+    right = new int[n];
+    failures = new int[n];
+    for (int k = 0; k < n; k++) {
+      left[k] = checks.get(k)[0];
+      right[k] = checks.get(k)[1];
+    }
+  }
+
+  public int numberOfChecks() { return left.length; }
+
+  /**
+   * Test if <code>tuple</code> satisfies the constraint.
+   */
+  public boolean isSatisfiedBy(final int[] tuple) {
+    final int n = left.length;
+    for (int k = 0; k < n; k++) {
+      final int r = right[k];
+      final int x = tuple[left[k]];
+      if (r >= 0 ? x != tuple[r] : x != -r - 1) {
+        failures[k]++;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Put the checks which have rejected the most tuples first and start
+   * counting again.
+   */
+  public void reorder() {
+    final int n = left.length;
+    final Integer[] order = new Integer[n];
+    for (int k = 0; k < n; k++) {
+      order[k] = k;
+    }
+    // stable, so checks which never failed keep their order
+    Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Integer.compare(failures[b], failures[a]);
+        }
+      });
+    final int[] l = left.clone();
+    final int[] r = right.clone();
+    for (int k = 0; k < n; k++) {
+      left[k] = l[order[k]];
+      right[k] = r[order[k]];
+    }
+    Arrays.fill(failures, 0);
+  }
+
+}
@@ -0,0 +1,121 @@
+/* FingerprintIndex.java */
+
+package org.uacalc.util;
+
+import java.util.*;
+
+/**
+ * An index of the tuples in a growing <code>List</code> of
+ * <code>int[]</code>'s, for testing if a newly computed tuple is
+ * already there without making an <code>IntArray</code> of it.
+ * <p>
+ * Each slot of the table is a single <code>long</code> holding the
+ * hash of a tuple in its high half and its index in its low half, so
+ * a probe reads one cache line of the table and only looks at a tuple
+ * whose hash is the same. The test is exact: a tuple with a matching
+ * hash is compared coordinate by coordinate.
+ * <p>
+ * The list is only ever appended to, and the index catches up with it
+ * on each lookup, so the code adding to the list need not know about
+ * the index. This is not thread safe.
+ *
+ * @author Ralph Freese
+ */
+public final class FingerprintIndex {
+
+  static final float MAX_LOAD = 0.5f;
+
+  private final List<int[]> list;
+  private int count = 0;       // the number of tuples of list indexed
+  private long[] table;
+  private int mask;
+  private int resizeAt;
+  private int resizes = 0;
+
+  public FingerprintIndex(List<int[]> list) {
+    this.list = list;
+    int cap = 16;
+    while (cap * MAX_LOAD < 2 * list.size() && cap < (1 << 30)) cap = cap << 1;
+    table = new long[cap];
+    mask = cap - 1;
+    resizeAt = (int)(cap * MAX_LOAD);
+  }
+
+  /**
+   * The list this indexes.
+   */
+  public List<int[]> getList() { return list; }
+
+  /**
+   * The number of tuples of the list indexed so far.
+   */
+  public int size() { return count; }
+
+  /**
+   * The number of slots of the table.
+   */
+  public int capacity() { return table.length; }
+
+  /**
+   * The number of times the table has grown.
+   */
+  public int resizes() { return resizes; }
+
+  /**
+   * The index in the list of <code>tuple</code>, or -1 if it is
+   * not there.
+   */
+  public int indexOf(final int[] tuple) {
+    update();
+    final List<int[]> lst = list;
+    final int h = PackedTupleStore.hash(tuple);
+    int pos = h & mask;
+    while (true) {
+      final long e = table[pos];
+      if (e == 0) return -1;
+      if ((int)(e >>> 32) == h) {
+        final int index = (int)e - 1;
+        if (Arrays.equals(lst.get(index), tuple)) return index;
+      }
+      pos = (pos + 1) & mask;
+    }
+  }
+
+  /**
+   * Index the tuples added to the list since the last lookup. After
+   * this, and as long as the list does not grow, {@link #indexOf} only
+   * reads the table, so several threads may call it at once.
+   */
+  public void update() {
+    final List<int[]> lst = list;
+    while (count < lst.size()) {
+      insert(PackedTupleStore.hash(lst.get(count)), count);
+      count++;
+    }
+  }
+
+  private void insert(int h, int index) {
+    if (count >= resizeAt) rehash();
+    int pos = h & mask;
+    while (table[pos] != 0) pos = (pos + 1) & mask;
+    table[pos] = ((long)h << 32) | ((index + 1) & 0xffffffffL);
+  }
+
+  private void rehash() {
+    final int cap = table.length << 1;
+    final long[] newTable = new long[cap];
+    final int newMask = cap - 1;
+    for (int i = 0; i < table.length; i++) {
+      final long e = table[i];
+      if (e == 0) continue;
+      int pos = (int)(e >>> 32) & newMask;
+      while (newTable[pos] != 0) pos = (pos + 1) & newMask;
+      newTable[pos] = e;
+    }
+    table = newTable;
+    mask = newMask;
+    resizeAt = (int)(cap * MAX_LOAD);
+    resizes++;
+  }
+
+}
@@ -125,6 +125,57 @@ public final class Horner {
     return ans;
   }
 
+  /**
+   * Apply an operation given by its Horner encoded table, coordinatewise,
+   * to the tuples <code>args[0], ..., args[arity - 1]</code>, putting the
+   * first <code>width</code> values into <code>dest</code>.
+   * <p>
+   * Unary, binary and ternary operations have loops of their own. For
+   * higher arities the Horner indices are built in <code>dest</code> one
+   * argument at a time, so every loop runs straight along the arrays
+   * and the JIT can vectorize it.
+   *
+   * @param table    the table of an operation on a set of size
+   *                 <code>algSize</code>
+   * @param args     the arguments; <code>dest</code> must not be one of them
+   */
+  public static void applyCoordinatewise(final int[] table,
+                       final int algSize, final int[][] args,
+                       final int[] dest, final int width) {
+    final int arity = args.length;
+    final int[] x0 = args[0];
+    if (arity == 1) {
+      for (int j = 0; j < width; j++) {
+        dest[j] = table[x0[j]];
+      }
+      return;
+    }
+    final int[] x1 = args[1];
+    if (arity == 2) {
+      for (int j = 0; j < width; j++) {
+        dest[j] = table[x1[j] * algSize + x0[j]];
+      }
+      return;
+    }
+    if (arity == 3) {
+      final int[] x2 = args[2];
+      for (int j = 0; j < width; j++) {
+        dest[j] = table[(x2[j] * algSize + x1[j]) * algSize + x0[j]];
+      }
+      return;
+    }
+    System.arraycopy(args[arity - 1], 0, dest, 0, width);
+    for (int r = arity - 2; r >= 0; r--) {
+      final int[] x = args[r];
+      for (int j = 0; j < width; j++) {
+        dest[j] = dest[j] * algSize + x[j];
+      }
+    }
+    for (int j = 0; j < width; j++) {
+      dest[j] = table[dest[j]];
+    }
+  }
+
   /**
    * A convenience method for generating a new array with the reverse
    * order of the given array.
@@ -0,0 +1,204 @@
+/* MappedTupleStore.java */
+
+package org.uacalc.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A {@link PackedTupleStore} whose tuples are kept in memory mapped
+ * segments of a file rather than on the heap, for closures too large
+ * to fit in memory.
+ * <p>
+ * The chunks of tuples are laid out one after another in segments of
+ * at most {@link #SEGMENT_BYTES} bytes, each mapped when the first
+ * tuple is written to it, so the operating system pages them in and
+ * out as the closure runs through them. Only the hash index and the
+ * hash of each tuple are kept on the heap, about a dozen bytes a
+ * tuple however wide it is. Probes of the index compare the hashes
+ * first, so a tuple's coordinates are only read from the file when
+ * its hash matches, and the index can be rebuilt without reading the
+ * file at all.
+ * <p>
+ * The file is made in the given directory and deleted right away
+ * where the system allows it, so nothing is left behind; otherwise
+ * it is deleted on exit.
+ *
+ * @author Ralph Freese
+ */
+public final class MappedTupleStore extends PackedTupleStore {
+
+  /**
+   * The most bytes mapped at a time.
+   */
+  static final int SEGMENT_BYTES = 1 << 26;
+
+  private final int bytesPerCoordinate;
+  private final int chunkBytes;
+  private final int chunksPerSegment;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+
+  // volatile so a reader always sees a filled in copy when these grow.
+  private volatile ByteBuffer[] segments = new ByteBuffer[4];
+  private volatile int[][] hashes = new int[4][];
+
+  private MappedTupleStore(File dir, int width, int expectedSize,
+                           int bytesPerCoordinate) throws IOException {
+    super(width, expectedSize);
+    this.bytesPerCoordinate = bytesPerCoordinate;
+    chunkBytes = (chunkMask + 1) * Math.max(width, 1) * bytesPerCoordinate;
+    chunksPerSegment = Math.max(SEGMENT_BYTES / chunkBytes, 1);
+    final File f = File.createTempFile("tuples", ".seg", dir);
+    file = new RandomAccessFile(f, "rw");
+    channel = file.getChannel();
+    if (!f.delete()) f.deleteOnExit();
+  }
+
+  /**
+   * A store for tuples of length <code>width</code> whose coordinates
+   * lie in <code>{0, ..., maxValue}</code>, mapped from a file in
+   * <code>dir</code>, or the default temporary directory if that is
+   * null.
+   */
+  public static MappedTupleStore create(File dir, int width,
+                  int expectedSize, int maxValue) throws IOException {
+    if (maxValue < 0) throw new IllegalArgumentException("negative maxValue");
+    final int bytes = maxValue <= 0xff ? 1 : (maxValue <= 0xffff ? 2 : 4);
+    return new MappedTupleStore(dir, width, expectedSize, bytes);
+  }
+
+  public int bytesPerCoordinate() { return bytesPerCoordinate; }
+
+  /**
+   * Close the file. The tuples may still be read, since the mappings
+   * last until they are garbage collected, but no more may be added.
+   */
+  public void close() throws IOException {
+    file.close();
+  }
+
+  // the segment holding chunk c
+  private ByteBuffer segment(int index) {
+    return segments[(index >>> chunkShift) / chunksPerSegment];
+  }
+
+  // the position in its segment of coordinate 0 of the tuple
+  private int position(int index) {
+    final int c = index >>> chunkShift;
+    return (c % chunksPerSegment) * chunkBytes
+             + (index & chunkMask) * width * bytesPerCoordinate;
+  }
+
+  private int coordinate(ByteBuffer seg, int pos, int j) {
+    switch (bytesPerCoordinate) {
+      case 1: return seg.get(pos + j) & 0xff;
+      case 2: return seg.getShort(pos + 2 * j) & 0xffff;
+      default: return seg.getInt(pos + 4 * j);
+    }
+  }
+
+  public int get(int index, int j) {
+    return coordinate(segment(index), position(index), j);
+  }
+
+  public int[] get(int index, int[] dest) {
+    final ByteBuffer seg = segment(index);
+    final int pos = position(index);
+    for (int j = 0; j < width; j++) {
+      dest[j] = coordinate(seg, pos, j);
+    }
+    return dest;
+  }
+
+  public void evaluate(final int[] table, final int algSize,
+                       final int[] args, final int[] dest) {
+    final int arity = args.length;
+    // build the Horner indices in dest, one argument at a time
+    for (int r = arity - 1; r >= 0; r--) {
+      final int a = args[r];
+      final ByteBuffer seg = segment(a);
+      final int pos = position(a);
+      if (r == arity - 1) {
+        for (int j = 0; j < width; j++) {
+          dest[j] = coordinate(seg, pos, j);
+        }
+      }
+      else {
+        for (int j = 0; j < width; j++) {
+          dest[j] = dest[j] * algSize + coordinate(seg, pos, j);
+        }
+      }
+    }
+    for (int j = 0; j < width; j++) {
+      dest[j] = table[dest[j]];
+    }
+  }
+
+  protected void put(int index, int[] tuple) {
+    put(index, tuple, hash(tuple));
+  }
+
+  protected void put(int index, int[] tuple, int h) {
+    final int c = index >>> chunkShift;
+    final int s = c / chunksPerSegment;
+    ByteBuffer[] segs = segments;
+    if (s >= segs.length) {
+      segs = Arrays.copyOf(segs, 2 * segs.length);
+      segments = segs;
+    }
+    ByteBuffer seg = segs[s];
+    if (seg == null) {
+      try {
+        seg = channel.map(FileChannel.MapMode.READ_WRITE,
+                          (long)s * chunksPerSegment * chunkBytes,
+                          (long)chunksPerSegment * chunkBytes);
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("could not map a segment of the "
+                                        + "tuple file: " + e.getMessage(), e);
+      }
+      seg.order(ByteOrder.nativeOrder());
+      segs[s] = seg;
+      segments = segs;
+    }
+    final int pos = position(index);
+    for (int j = 0; j < width; j++) {
+      switch (bytesPerCoordinate) {
+        case 1: seg.put(pos + j, (byte)tuple[j]); break;
+        case 2: seg.putShort(pos + 2 * j, (short)tuple[j]); break;
+        default: seg.putInt(pos + 4 * j, tuple[j]);
+      }
+    }
+    int[][] hs = hashes;
+    if (c >= hs.length) hs = Arrays.copyOf(hs, 2 * hs.length);
+    if (hs[c] == null) hs[c] = new int[c == 0 ? 16 : chunkMask + 1];
+    final int off = index & chunkMask;
+    if (off >= hs[c].length) {
+      // only the first chunk grows
+      hs[c] = Arrays.copyOf(hs[c], Math.min(2 * hs[c].length, chunkMask + 1));
+    }
+    hs[c][off] = h;
+    hashes = hs;
+  }
+
+  protected boolean equalsAt(final int index, final int[] tuple) {
+    final ByteBuffer seg = segment(index);
+    final int pos = position(index);
+    for (int j = 0; j < width; j++) {
+      if (coordinate(seg, pos, j) != tuple[j]) return false;
+    }
+    return true;
+  }
+
+  protected boolean equalsAt(int index, int[] tuple, int h) {
+    return hashAt(index) == h && equalsAt(index, tuple);
+  }
+
+  protected int hashAt(final int index) {
+    return hashes[index >>> chunkShift][index & chunkMask];
+  }
+
+}
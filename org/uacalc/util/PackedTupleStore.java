@@ -0,0 +1,713 @@
+/* PackedTupleStore.java */
+
+package org.uacalc.util;
+
+import java.util.*;
+
+/**
+ * A compact, append only set of tuples of a fixed width, used by the
+ * closure routines in place of a <code>List</code> of
+ * <code>IntArray</code>'s together with a <code>HashSet</code> of them.
+ * <p>
+ * The tuples are packed one after another into large chunks of a
+ * flat <code>int</code> array and are referred to by their index,
+ * which is the order in which they were added. Membership is tested
+ * with an open addressing hash index over these indices, so the only
+ * memory used per tuple, besides its coordinates, is a couple of slots
+ * of the index. No object is created for a tuple unless it is asked
+ * for as an <code>IntArray</code>.
+ * <p>
+ * The coordinates are kept in <code>byte</code>'s, <code>short</code>'s
+ * or <code>int</code>'s depending on how large they can be; see
+ * {@link #create(int, int, int)}. For tuples over a set with at most
+ * 256 elements this takes a quarter of the space of <code>int</code>'s.
+ * <p>
+ * Several threads may read tuples whose index was published to them
+ * (for example, tuples added before the reading threads were started)
+ * while one thread adds new ones: chunks are never moved, only the
+ * array holding them is replaced when it grows. Adding is not
+ * thread safe.
+ *
+ * @author Ralph Freese
+ */
+public abstract class PackedTupleStore {
+
+  /**
+   * The number of coordinates we aim to have in each chunk.
+   */
+  static final int CHUNK_ENTRIES = 1 << 20;
+
+  static final float MAX_LOAD = 0.6f;
+
+  protected final int width;
+  protected final int chunkShift;   // log of the number of tuples per chunk
+  protected final int chunkMask;
+  // the first chunk starts with room for this many coordinates and
+  // doubles until it is full size, so small stores stay small.
+  protected final int firstChunkLength;
+  protected int size = 0;
+
+  // the hash index: slot holds (index + 1) of a tuple, or 0 if empty.
+  private int[] slots;
+  private int slotMask;
+  private int resizeAt;
+
+  /**
+   * A store for tuples of length <code>width</code> with room
+   * for about <code>expectedSize</code> of them before the
+   * index has to grow.
+   */
+  protected PackedTupleStore(int width, int expectedSize) {
+    if (width < 0) throw new IllegalArgumentException("negative width");
+    this.width = width;
+    int shift = 0;
+    while (shift < 30 && (2L << shift) * Math.max(width, 1) <= CHUNK_ENTRIES) shift++;
+    chunkShift = shift;
+    chunkMask = (1 << shift) - 1;
+    int first = 16;
+    while (first < expectedSize && first <= chunkMask) first = first << 1;
+    firstChunkLength = Math.min(first, chunkMask + 1) * width;
+    int cap = 16;
+    while (cap * MAX_LOAD < expectedSize && cap < (1 << 30)) cap = cap << 1;
+    slots = new int[cap];
+    slotMask = cap - 1;
+    resizeAt = (int)(cap * MAX_LOAD);
+  }
+
+  /**
+   * A store for tuples of length <code>width</code> whose coordinates
+   * lie in <code>{0, ..., maxValue}</code>, using the narrowest
+   * coordinate type that can hold them.
+   */
+  public static PackedTupleStore create(int width, int expectedSize, 
+                                                   int maxValue) {
+    if (maxValue < 0) throw new IllegalArgumentException("negative maxValue");
+    if (maxValue <= 0xff) return new Bytes(width, expectedSize);
+    if (maxValue <= 0xffff) return new Shorts(width, expectedSize);
+    return new Ints(width, expectedSize);
+  }
+
+  /**
+   * A store for tuples of length <code>width</code> with arbitrary
+   * nonnegative coordinates.
+   */
+  public static PackedTupleStore create(int width, int expectedSize) {
+    return new Ints(width, expectedSize);
+  }
+
+  public final int width() { return width; }
+
+  public final int size() { return size; }
+
+  /**
+   * The number of bytes used for each coordinate: 1, 2 or 4.
+   */
+  public abstract int bytesPerCoordinate();
+
+  /**
+   * The value of coordinate <code>j</code> of the tuple with index
+   * <code>index</code>.
+   */
+  public abstract int get(int index, int j);
+
+  /**
+   * Copy the tuple with index <code>index</code> into <code>dest</code>.
+   */
+  public abstract int[] get(int index, int[] dest);
+
+  /**
+   * A newly allocated copy of the tuple with index <code>index</code>.
+   */
+  public final int[] getArray(int index) {
+    return get(index, new int[width]);
+  }
+
+  public final IntArray getIntArray(int index) {
+    return new IntArray(getArray(index));
+  }
+
+  /**
+   * Apply an operation given by its Horner encoded table, coordinatewise,
+   * to the tuples whose indices are in <code>args</code>, putting the
+   * result into <code>dest</code>. Each argument's slice of its chunk
+   * is found once and the coordinates are then run through in a single
+   * loop, with loops of their own for arities 1, 2 and 3, as in
+   * {@link Horner#applyCoordinatewise}.
+   *
+   * @param table    the table of an operation on a set of size
+   *                 <code>algSize</code>
+   * @param algSize  the size of the set the coordinates lie in
+   * @param args     the indices of the arguments; its length is the arity
+   * @param dest     an array of length at least <code>width</code>
+   */
+  public abstract void evaluate(int[] table, int algSize, 
+                                int[] args, int[] dest);
+
+  /**
+   * The length of a new chunk <code>c</code>.
+   */
+  protected final int chunkLength(int c) {
+    return c == 0 ? firstChunkLength : (chunkMask + 1) * width;
+  }
+
+  /**
+   * The length the first chunk grows to when it has length 
+   * <code>len</code> and is full.
+   */
+  protected final int grownLength(int len) {
+    return Math.min(2 * len, (chunkMask + 1) * width);
+  }
+
+  /**
+   * Write <code>tuple</code> as the tuple with index <code>index</code>,
+   * which is <code>size</code>, allocating a chunk if needed.
+   */
+  protected abstract void put(int index, int[] tuple);
+
+  protected abstract boolean equalsAt(int index, int[] tuple);
+
+  protected abstract int hashAt(int index);
+
+  /**
+   * Write <code>tuple</code>, whose hash is <code>h</code>, as the
+   * tuple with index <code>index</code>. A store which keeps the hashes
+   * can override this.
+   */
+  protected void put(int index, int[] tuple, int h) {
+    put(index, tuple);
+  }
+
+  /**
+   * Test if the tuple with index <code>index</code> is <code>tuple</code>,
+   * whose hash is <code>h</code>. A store which keeps the hashes can
+   * compare them first.
+   */
+  protected boolean equalsAt(int index, int[] tuple, int h) {
+    return equalsAt(index, tuple);
+  }
+
+  /**
+   * Add a tuple if it is not already in the store.
+   *
+   * @param tuple  an array of length <code>width</code>; it is copied
+   *
+   * @return the index of the new tuple, or, if it was already here,
+   *         <code>-(index + 1)</code> where index is its index.
+   */
+  public final int add(final int[] tuple) {
+    final int h = hash(tuple);
+    int pos = h & slotMask;
+    while (true) {
+      final int k = slots[pos];
+      if (k == 0) break;
+      if (equalsAt(k - 1, tuple, h)) return -k;
+      pos = (pos + 1) & slotMask;
+    }
+    final int index = size;
+    put(index, tuple, h);
+    slots[pos] = index + 1;
+    size++;
+    if (size > resizeAt) rehash();
+    return index;
+  }
+
+  /**
+   * The index of <code>tuple</code> or -1 if it is not in the store.
+   */
+  public final int indexOf(final int[] tuple) {
+    if (tuple.length != width) return -1;
+    final int h = hash(tuple);
+    int pos = h & slotMask;
+    while (true) {
+      final int k = slots[pos];
+      if (k == 0) return -1;
+      if (equalsAt(k - 1, tuple, h)) return k - 1;
+      pos = (pos + 1) & slotMask;
+    }
+  }
+
+  public final boolean contains(int[] tuple) {
+    return indexOf(tuple) >= 0;
+  }
+
+  static int hash(final int[] tuple) {
+    int h = 1;
+    for (int j = 0; j < tuple.length; j++) {
+      h = 31 * h + tuple[j];
+    }
+    return mix(h);
+  }
+
+  // the finalizer of MurmurHash3; the polynomial hash alone puts
+  // tuples over small sets into too few slots.
+  static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  private void rehash() {
+    final int cap = slots.length << 1;
+    final int[] newSlots = new int[cap];
+    final int mask = cap - 1;
+    for (int index = 0; index < size; index++) {
+      int pos = hashAt(index) & mask;
+      while (newSlots[pos] != 0) pos = (pos + 1) & mask;
+      newSlots[pos] = index + 1;
+    }
+    slots = newSlots;
+    slotMask = mask;
+    resizeAt = (int)(cap * MAX_LOAD);
+  }
+
+  /**
+   * A <code>List</code> view of the tuples, in the order
+   * they were added. Each <code>get</code> makes a new
+   * <code>IntArray</code>; <code>indexOf</code> and
+   * <code>contains</code> use the hash index. Adding to the list
+   * adds to the store; since this is a set, adding a tuple already
+   * present does nothing and returns <code>false</code>.
+   */
+  public List<IntArray> asList() {
+    return new TupleList();
+  }
+
+  /**
+   * A <code>Set</code> view of the tuples, backed by the hash index.
+   */
+  public Set<IntArray> asSet() {
+    return new AbstractSet<IntArray>() {
+        public int size() { return size; }
+        public Iterator<IntArray> iterator() { return asList().iterator(); }
+        public boolean contains(Object obj) {
+          return (obj instanceof IntArray) 
+              && indexOf(((IntArray)obj).getArray()) >= 0;
+        }
+        public boolean add(IntArray ia) {
+          return PackedTupleStore.this.add(ia.getArray()) >= 0;
+        }
+      };
+  }
+
+  public final class TupleList extends AbstractList<IntArray> implements RandomAccess {
+
+    public IntArray get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+      }
+      return getIntArray(index);
+    }
+
+    public int size() { return size; }
+
+    public boolean add(IntArray ia) {
+      return PackedTupleStore.this.add(ia.getArray()) >= 0;
+    }
+
+    public int indexOf(Object obj) {
+      if (!(obj instanceof IntArray)) return -1;
+      return PackedTupleStore.this.indexOf(((IntArray)obj).getArray());
+    }
+
+    public int lastIndexOf(Object obj) {
+      return indexOf(obj);
+    }
+
+    public boolean contains(Object obj) {
+      return indexOf(obj) >= 0;
+    }
+
+    public PackedTupleStore getStore() { return PackedTupleStore.this; }
+  }
+
+  /**
+   * Coordinates kept as <code>int</code>'s.
+   */
+  static final class Ints extends PackedTupleStore {
+
+    // volatile so a reader always sees a filled in copy when this grows.
+    private volatile int[][] chunks = new int[4][];
+
+    Ints(int width, int expectedSize) {
+      super(width, expectedSize);
+    }
+
+    public int bytesPerCoordinate() { return 4; }
+
+    public int get(int index, int j) {
+      return chunks[index >>> chunkShift][(index & chunkMask) * width + j];
+    }
+
+    public int[] get(int index, int[] dest) {
+      final int[] chunk = chunks[index >>> chunkShift];
+      final int off = (index & chunkMask) * width;
+      for (int j = 0; j < width; j++) {
+        dest[j] = chunk[off + j];
+      }
+      return dest;
+    }
+
+    public void evaluate(final int[] table, final int algSize,
+                         final int[] args, final int[] dest) {
+      final int arity = args.length;
+      final int[][] cs = chunks;
+      final int a0 = args[0];
+      final int[] x0 = cs[a0 >>> chunkShift];
+      final int o0 = (a0 & chunkMask) * width;
+      if (arity == 1) {
+        for (int j = 0; j < width; j++) {
+          dest[j] = table[x0[o0 + j]];
+        }
+        return;
+      }
+      final int a1 = args[1];
+      final int[] x1 = cs[a1 >>> chunkShift];
+      final int o1 = (a1 & chunkMask) * width;
+      if (arity == 2) {
+        for (int j = 0; j < width; j++) {
+          dest[j] = table[x1[o1 + j] * algSize + x0[o0 + j]];
+        }
+        return;
+      }
+      if (arity == 3) {
+        final int a2 = args[2];
+        final int[] x2 = cs[a2 >>> chunkShift];
+        final int o2 = (a2 & chunkMask) * width;
+        for (int j = 0; j < width; j++) {
+          dest[j] = table[(x2[o2 + j] * algSize + x1[o1 + j]) * algSize
+                          + x0[o0 + j]];
+        }
+        return;
+      }
+      // build the Horner indices in dest, one argument at a time
+      for (int r = arity - 1; r >= 0; r--) {
+        final int a = args[r];
+        final int[] x = cs[a >>> chunkShift];
+        final int o = (a & chunkMask) * width;
+        if (r == arity - 1) {
+          for (int j = 0; j < width; j++) {
+            dest[j] = x[o + j];
+          }
+        }
+        else {
+          for (int j = 0; j < width; j++) {
+            dest[j] = dest[j] * algSize + x[o + j];
+          }
+        }
+      }
+      for (int j = 0; j < width; j++) {
+        dest[j] = table[dest[j]];
+      }
+    }
+
+    protected void put(int index, int[] tuple) {
+      final int c = index >>> chunkShift;
+      int[][] cs = chunks;
+      int[] chunk;
+      if (c >= cs.length) {
+        cs = Arrays.copyOf(cs, 2 * cs.length);
+        chunk = new int[(chunkMask + 1) * width];
+        cs[c] = chunk;
+        chunks = cs;
+      }
+      else {
+        chunk = cs[c];
+        if (chunk == null) {
+          chunk = new int[chunkLength(c)];
+          cs[c] = chunk;
+        }
+      }
+      final int off = (index & chunkMask) * width;
+      if (off + width > chunk.length) {
+        // only the first chunk grows; the copy has all the old tuples.
+        chunk = Arrays.copyOf(chunk, grownLength(chunk.length));
+        cs[c] = chunk;
+        chunks = cs;
+      }
+      for (int j = 0; j < width; j++) {
+        chunk[off + j] = tuple[j];
+      }
+    }
+
+    protected boolean equalsAt(final int index, final int[] tuple) {
+      final int[] chunk = chunks[index >>> chunkShift];
+      final int off = (index & chunkMask) * width;
+      for (int j = 0; j < width; j++) {
+        if (chunk[off + j] != tuple[j]) return false;
+      }
+      return true;
+    }
+
+    protected int hashAt(final int index) {
+      final int[] chunk = chunks[index >>> chunkShift];
+      final int off = (index & chunkMask) * width;
+      int h = 1;
+      for (int j = 0; j < width; j++) {
+        h = 31 * h + chunk[off + j];
+      }
+      return mix(h);
+    }
+  }
+
+  /**
+   * Coordinates less than 65536 kept as unsigned <code>short</code>'s.
+   */
+  static final class Shorts extends PackedTupleStore {
+
+    // volatile so a reader always sees a filled in copy when this grows.
+    private volatile short[][] chunks = new short[4][];
+
+    Shorts(int width, int expectedSize) {
+      super(width, expectedSize);
+    }
+
+    public int bytesPerCoordinate() { return 2; }
+
+    public int get(int index, int j) {
+      return (chunks[index >>> chunkShift][(index & chunkMask) * width + j] & 0xffff);
+    }
+
+    public int[] get(int index, int[] dest) {
+      final short[] chunk = chunks[index >>> chunkShift];
+      final int off = (index & chunkMask) * width;
+      for (int j = 0; j < width; j++) {
+        dest[j] = (chunk[off + j] & 0xffff);
+      }
+      return dest;
+    }
+
+    public void evaluate(final int[] table, final int algSize,
+                         final int[] args, final int[] dest) {
+      final int arity = args.length;
+      final short[][] cs = chunks;
+      final int a0 = args[0];
+      final short[] x0 = cs[a0 >>> chunkShift];
+      final int o0 = (a0 & chunkMask) * width;
+      if (arity == 1) {
+        for (int j = 0; j < width; j++) {
+          dest[j] = table[(x0[o0 + j] & 0xffff)];
+        }
+        return;
+      }
+      final int a1 = args[1];
+      final short[] x1 = cs[a1 >>> chunkShift];
+      final int o1 = (a1 & chunkMask) * width;
+      if (arity == 2) {
+        for (int j = 0; j < width; j++) {
+          dest[j] = table[(x1[o1 + j] & 0xffff) * algSize + (x0[o0 + j] & 0xffff)];
+        }
+        return;
+      }
+      if (arity == 3) {
+        final int a2 = args[2];
+        final short[] x2 = cs[a2 >>> chunkShift];
+        final int o2 = (a2 & chunkMask) * width;
+        for (int j = 0; j < width; j++) {
+          dest[j] = table[((x2[o2 + j] & 0xffff) * algSize + (x1[o1 + j] & 0xffff)) * algSize
+                          + (x0[o0 + j] & 0xffff)];
+        }
+        return;
+      }
+      // build the Horner indices in dest, one argument at a time
+      for (int r = arity - 1; r >= 0; r--) {
+        final int a = args[r];
+        final short[] x = cs[a >>> chunkShift];
+        final int o = (a & chunkMask) * width;
+        if (r == arity - 1) {
+          for (int j = 0; j < width; j++) {
+            dest[j] = (x[o + j] & 0xffff);
+          }
+        }
+        else {
+          for (int j = 0; j < width; j++) {
+            dest[j] = dest[j] * algSize + (x[o + j] & 0xffff);
+          }
+        }
+      }
+      for (int j = 0; j < width; j++) {
+        dest[j] = table[dest[j]];
+      }
+    }
+
+    protected void put(int index, int[] tuple) {
+      final int c = index >>> chunkShift;
+      short[][] cs = chunks;
+      short[] chunk;
+      if (c >= cs.length) {
+        cs = Arrays.copyOf(cs, 2 * cs.length);
+        chunk = new short[(chunkMask + 1) * width];
+        cs[c] = chunk;
+        chunks = cs;
+      }
+      else {
+        chunk = cs[c];
+        if (chunk == null) {
+          chunk = new short[chunkLength(c)];
+          cs[c] = chunk;
+        }
+      }
+      final int off = (index & chunkMask) * width;
+      if (off + width > chunk.length) {
+        // only the first chunk grows; the copy has all the old tuples.
+        chunk = Arrays.copyOf(chunk, grownLength(chunk.length));
+        cs[c] = chunk;
+        chunks = cs;
+      }
+      for (int j = 0; j < width; j++) {
+        chunk[off + j] = (short)tuple[j];
+      }
+    }
+
+    protected boolean equalsAt(final int index, final int[] tuple) {
+      final short[] chunk = chunks[index >>> chunkShift];
+      final int off = (index & chunkMask) * width;
+      for (int j = 0; j < width; j++) {
+        if ((chunk[off + j] & 0xffff) != tuple[j]) return false;
+      }
+      return true;
+    }
+
+    protected int hashAt(final int index) {
+      final short[] chunk = chunks[index >>> chunkShift];
+      final int off = (index & chunkMask) * width;
+      int h = 1;
+      for (int j = 0; j < width; j++) {
+        h = 31 * h + (chunk[off + j] & 0xffff);
+      }
+      return mix(h);
+    }
+  }
+
+  /**
+   * Coordinates less than 256 kept as unsigned <code>byte</code>'s.
+   */
+  static final class Bytes extends PackedTupleStore {
+
+    // volatile so a reader always sees a filled in copy when this grows.
+    private volatile byte[][] chunks = new byte[4][];
+
+    Bytes(int width, int expectedSize) {
+      super(width, expectedSize);
+    }
+
+    public int bytesPerCoordinate() { return 1; }
+
+    public int get(int index, int j) {
+      return (chunks[index >>> chunkShift][(index & chunkMask) * width + j] & 0xff);
+    }
+
+    public int[] get(int index, int[] dest) {
+      final byte[] chunk = chunks[index >>> chunkShift];
+      final int off = (index & chunkMask) * width;
+      for (int j = 0; j < width; j++) {
+        dest[j] = (chunk[off + j] & 0xff);
+      }
+      return dest;
+    }
+
+    public void evaluate(final int[] table, final int algSize,
+                         final int[] args, final int[] dest) {
+      final int arity = args.length;
+      final byte[][] cs = chunks;
+      final int a0 = args[0];
+      final byte[] x0 = cs[a0 >>> chunkShift];
+      final int o0 = (a0 & chunkMask) * width;
+      if (arity == 1) {
+        for (int j = 0; j < width; j++) {
+          dest[j] = table[(x0[o0 + j] & 0xff)];
+        }
+        return;
+      }
+      final int a1 = args[1];
+      final byte[] x1 = cs[a1 >>> chunkShift];
+      final int o1 = (a1 & chunkMask) * width;
+      if (arity == 2) {
+        for (int j = 0; j < width; j++) {
+          dest[j] = table[(x1[o1 + j] & 0xff) * algSize + (x0[o0 + j] & 0xff)];
+        }
+        return;
+      }
+      if (arity == 3) {
+        final int a2 = args[2];
+        final byte[] x2 = cs[a2 >>> chunkShift];
+        final int o2 = (a2 & chunkMask) * width;
+        for (int j = 0; j < width; j++) {
+          dest[j] = table[((x2[o2 + j] & 0xff) * algSize + (x1[o1 + j] & 0xff)) * algSize
+                          + (x0[o0 + j] & 0xff)];
+        }
+        return;
+      }
+      // build the Horner indices in dest, one argument at a time
+      for (int r = arity - 1; r >= 0; r--) {
+        final int a = args[r];
+        final byte[] x = cs[a >>> chunkShift];
+        final int o = (a & chunkMask) * width;
+        if (r == arity - 1) {
+          for (int j = 0; j < width; j++) {
+            dest[j] = (x[o + j] & 0xff);
+          }
+        }
+        else {
+          for (int j = 0; j < width; j++) {
+            dest[j] = dest[j] * algSize + (x[o + j] & 0xff);
+          }
+        }
+      }
+      for (int j = 0; j < width; j++) {
+        dest[j] = table[dest[j]];
+      }
+    }
+
+    protected void put(int index, int[] tuple) {
+      final int c = index >>> chunkShift;
+      byte[][] cs = chunks;
+      byte[] chunk;
+      if (c >= cs.length) {
+        cs = Arrays.copyOf(cs, 2 * cs.length);
+        chunk = new byte[(chunkMask + 1) * width];
+        cs[c] = chunk;
+        chunks = cs;
+      }
+      else {
+        chunk = cs[c];
+        if (chunk == null) {
+          chunk = new byte[chunkLength(c)];
+          cs[c] = chunk;
+        }
+      }
+      final int off = (index & chunkMask) * width;
+      if (off + width > chunk.length) {
+        // only the first chunk grows; the copy has all the old tuples.
+        chunk = Arrays.copyOf(chunk, grownLength(chunk.length));
+        cs[c] = chunk;
+        chunks = cs;
+      }
+      for (int j = 0; j < width; j++) {
+        chunk[off + j] = (byte)tuple[j];
+      }
+    }
+
+    protected boolean equalsAt(final int index, final int[] tuple) {
+      final byte[] chunk = chunks[index >>> chunkShift];
+      final int off = (index & chunkMask) * width;
+      for (int j = 0; j < width; j++) {
+        if ((chunk[off + j] & 0xff) != tuple[j]) return false;
+      }
+      return true;
+    }
+
+    protected int hashAt(final int index) {
+      final byte[] chunk = chunks[index >>> chunkShift];
+      final int off = (index & chunkMask) * width;
+      int h = 1;
+      for (int j = 0; j < width; j++) {
+        h = 31 * h + (chunk[off + j] & 0xff);
+      }
+      return mix(h);
+    }
+  }
+
+}
@@ -0,0 +1,228 @@
+/* PassRange.java */
+
+package org.uacalc.util;
+
+/**
+ * The argument index tuples of one pass of a closure, for an operation
+ * of a given arity, numbered <code>0, ..., size() - 1</code> in the
+ * order the serial closure tries them, so a pass can be cut into
+ * pieces by dividing this range.
+ * <p>
+ * The tuples are those with entries below <code>currentMark</code> and
+ * at least one entry at least <code>closedMark</code>, in lexicographic
+ * order as given by
+ * {@link SequenceGenerator#sequenceIncrementor(int[], int, int)}, or,
+ * for a symmetric operation, only the nondecreasing ones, as given by
+ * {@link SequenceGenerator#nondecreasingSequenceIncrementor(int[], int, int)}.
+ * {@link #decode} finds the tuple with a given number and {@link #next}
+ * steps to the one after it, both in place without making any objects.
+ *
+ * @author Ralph Freese
+ */
+public final class PassRange {
+
+  private final int arity;
+  private final int closedMark;
+  private final int currentMark;
+  private final boolean nondecreasing;
+  private final long size;
+  // currentMark^r and closedMark^r for all tuples
+  private final long[] nPow;
+  private final long[] mPow;
+
+  private PassRange(int arity, int closedMark, int currentMark,
+                    boolean nondecreasing) {
+    this.arity = arity;
+    this.closedMark = closedMark;
+    this.currentMark = currentMark;
+    this.nondecreasing = nondecreasing;
+    nPow = new long[arity + 1];
+    mPow = new long[arity + 1];
+    nPow[0] = 1;
+    mPow[0] = 1;
+    if (!nondecreasing) {
+      for (int r = 1; r <= arity; r++) {
+        nPow[r] = Math.multiplyExact(nPow[r - 1], (long)currentMark);
+        mPow[r] = mPow[r - 1] * closedMark;
+      }
+      size = nPow[arity] - mPow[arity];
+    }
+    else size = sumBelow(0, currentMark, arity - 1);
+  }
+
+  /**
+   * The range for the tuples of length <code>arity</code>, which should
+   * be at least 1, of a pass closing the elements below
+   * <code>closedMark</code> up to <code>currentMark</code>, or null if
+   * there are more of them than a <code>long</code> can count.
+   */
+  public static PassRange make(int arity, int closedMark, int currentMark,
+                               boolean nondecreasing) {
+    if (arity < 1) throw new IllegalArgumentException("arity must be positive");
+    if (closedMark < 0 || closedMark > currentMark) {
+      throw new IllegalArgumentException("bad marks " + closedMark + ", " + currentMark);
+    }
+    try {
+      return new PassRange(arity, closedMark, currentMark,
+                           nondecreasing && arity > 1);
+    }
+    catch (ArithmeticException e) {
+      return null;
+    }
+  }
+
+  /**
+   * The number of tuples.
+   */
+  public long size() { return size; }
+
+  public int arity() { return arity; }
+
+  /**
+   * Put the tuple with number <code>rank</code> into <code>dest</code>.
+   */
+  public void decode(long rank, final int[] dest) {
+    if (rank < 0 || rank >= size) {
+      throw new IndexOutOfBoundsException("rank: " + rank + ", size: " + size);
+    }
+    final int m = closedMark;
+    if (!nondecreasing) {
+      boolean over = false;  // some entry so far is at least closedMark
+      for (int i = 0; i < arity; i++) {
+        final int r = arity - 1 - i;
+        if (!over) {
+          final long block = nPow[r] - mPow[r];
+          if (m * block > rank) {
+            dest[i] = (int)(rank / block);
+            rank = rank % block;
+            continue;
+          }
+          rank -= m * block;
+          over = true;
+          dest[i] = m + (int)(rank / nPow[r]);
+        }
+        else dest[i] = (int)(rank / nPow[r]);
+        rank = rank % nPow[r];
+      }
+      return;
+    }
+    int lo = 0;
+    for (int i = 0; i < arity; i++) {
+      final int r = arity - 1 - i;
+      // the largest v with fewer than rank + 1 tuples before it
+      int a = lo;
+      int b = currentMark - 1;
+      while (a < b) {
+        final int v = (a + b + 1) >>> 1;
+        if (sumBetween(lo, v, r) <= rank) a = v;
+        else b = v - 1;
+      }
+      rank -= sumBetween(lo, a, r);
+      dest[i] = a;
+      lo = a;
+    }
+  }
+
+  /**
+   * The number of the tuple <code>tuple</code>, which must be one
+   * of these.
+   */
+  public long rank(final int[] tuple) {
+    final int m = closedMark;
+    long ans = 0;
+    if (!nondecreasing) {
+      boolean over = false;
+      for (int i = 0; i < arity; i++) {
+        final int r = arity - 1 - i;
+        final int v = tuple[i];
+        if (!over) {
+          final long block = nPow[r] - mPow[r];
+          if (v < m) {
+            ans += v * block;
+            continue;
+          }
+          ans += m * block + (long)(v - m) * nPow[r];
+          over = true;
+        }
+        else ans += v * nPow[r];
+      }
+      return ans;
+    }
+    int lo = 0;
+    for (int i = 0; i < arity; i++) {
+      ans += sumBetween(lo, tuple[i], arity - 1 - i);
+      lo = tuple[i];
+    }
+    return ans;
+  }
+
+  /**
+   * Step <code>a</code> to the next tuple; it must not be the last.
+   */
+  public void next(final int[] a) {
+    final int max = currentMark - 1;
+    final int len = a.length;
+    if (nondecreasing) {
+      for (int i = len - 1; i >= 0; i--) {
+        if (a[i] < max) {
+          final int k = a[i] + 1;
+          for (int j = i; j < len; j++) {
+            a[j] = k;
+          }
+          if (a[len - 1] < closedMark) a[len - 1] = closedMark;
+          return;
+        }
+      }
+      return;
+    }
+    for (int i = len - 1; i >= 0; i--) {
+      if (a[i] < max) {
+        a[i]++;
+        boolean over = a[i] >= closedMark;
+        for (int j = i + 1; j < len; j++) {
+          a[j] = 0;
+        }
+        for (int j = i - 1; j >= 0 && !over; j--) {
+          if (a[j] >= closedMark) over = true;
+        }
+        if (!over) a[len - 1] = closedMark;
+        return;
+      }
+    }
+  }
+
+  /**
+   * The number of nondecreasing tuples with first entry in
+   * <code>[lo, v)</code>, followed by <code>r</code> more entries below
+   * <code>currentMark</code>, whose last entry is at least
+   * <code>closedMark</code>.
+   */
+  private long sumBetween(int lo, int v, int r) {
+    return sumBelow(lo, currentMark, r) - sumBelow(v, currentMark, r);
+  }
+
+  /**
+   * The number of those tuples with first entry in <code>[lo, n)</code>.
+   */
+  private long sumBelow(int lo, int n, int r) {
+    final int m = closedMark;
+    if (lo >= n) return 0;
+    if (r == 0) return n - Math.max(lo, m);
+    // the tuples of length r + 1 with entries in [lo, n), less those
+    // with all entries in [lo, m)
+    long ans = choose(n - lo + r, r + 1);
+    if (lo < m) ans -= choose(m - lo + r, r + 1);
+    return ans;
+  }
+
+  private static long choose(int n, int k) {
+    if (k < 0 || k > n) return 0;
+    long ans = 1;
+    for (int t = 0; t < k; t++) {
+      // ans is C(n, t), so ans * (n - t) is divisible by t + 1
+      ans = Math.multiplyExact(ans, (long)(n - t)) / (t + 1);
+    }
+    return ans;
+  }
+
+}